@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * Stand-in of the Android logger, printing to the standard error.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int i(String tag, String msg) {
+        System.err.println("I/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println("E/" + tag + ": " + msg + " " + tr);
+        return 0;
+    }
+}
@@ -0,0 +1,64 @@
+package com.google.android.gms.fitness.data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in of the Google Fit DataPoint: a time interval and one value per field of its data type.
+ * Times are kept in nanoseconds, as in Fit.
+ */
+public final class DataPoint {
+    private final DataSource dataSource;
+    private final Value[] values;
+    private long startNanos;
+    private long endNanos;
+
+    private DataPoint(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.values = new Value[dataSource.getDataType().getFields().size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Value(dataSource.getDataType().getFields().get(i).getFormat());
+        }
+    }
+
+    public static DataPoint create(DataSource dataSource) {
+        return new DataPoint(dataSource);
+    }
+
+    public DataPoint setTimeInterval(long start, long end, TimeUnit unit) {
+        this.startNanos = unit.toNanos(start);
+        this.endNanos = unit.toNanos(end);
+        return this;
+    }
+
+    public DataPoint setTimestamp(long timestamp, TimeUnit unit) {
+        return setTimeInterval(timestamp, timestamp, unit);
+    }
+
+    public long getStartTime(TimeUnit unit) {
+        return unit.convert(startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getEndTime(TimeUnit unit) {
+        return unit.convert(endNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getTimestamp(TimeUnit unit) {
+        return getEndTime(unit);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public DataSource getOriginalDataSource() {
+        return dataSource;
+    }
+
+    public DataType getDataType() {
+        return dataSource.getDataType();
+    }
+
+    public Value getValue(Field field) {
+        return values[dataSource.getDataType().indexOf(field)];
+    }
+}
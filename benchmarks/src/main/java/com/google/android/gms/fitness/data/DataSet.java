@@ -0,0 +1,37 @@
+package com.google.android.gms.fitness.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stand-in of the Google Fit DataSet: the points of one data source, as returned by a read.
+ */
+public final class DataSet {
+    private final DataSource dataSource;
+    private final List<DataPoint> points = new ArrayList<DataPoint>();
+
+    private DataSet(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public static DataSet create(DataSource dataSource) {
+        return new DataSet(dataSource);
+    }
+
+    public void add(DataPoint datapoint) {
+        points.add(datapoint);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public DataType getDataType() {
+        return dataSource.getDataType();
+    }
+
+    public List<DataPoint> getDataPoints() {
+        return Collections.unmodifiableList(points);
+    }
+}
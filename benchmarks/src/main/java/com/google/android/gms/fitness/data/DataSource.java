@@ -0,0 +1,73 @@
+package com.google.android.gms.fitness.data;
+
+/**
+ * Stand-in of the Google Fit DataSource.
+ */
+public final class DataSource {
+    public static final int TYPE_RAW = 0;
+    public static final int TYPE_DERIVED = 1;
+
+    private final DataType dataType;
+    private final String appPackageName;
+    private final String streamName;
+
+    private DataSource(Builder builder) {
+        this.dataType = builder.dataType;
+        this.appPackageName = builder.appPackageName;
+        this.streamName = builder.streamName;
+    }
+
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    public String getAppPackageName() {
+        return appPackageName;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public String getName() {
+        return streamName;
+    }
+
+    public String getStreamIdentifier() {
+        return "raw:" + dataType.getName() + ":" + appPackageName + ":" + streamName;
+    }
+
+    public static final class Builder {
+        private DataType dataType;
+        private String appPackageName;
+        private String streamName = "";
+
+        public Builder setDataType(DataType dataType) {
+            this.dataType = dataType;
+            return this;
+        }
+
+        public Builder setAppPackageName(String appPackageName) {
+            this.appPackageName = appPackageName;
+            return this;
+        }
+
+        public Builder setStreamName(String streamName) {
+            this.streamName = streamName;
+            return this;
+        }
+
+        public Builder setName(String name) {
+            return setStreamName(name);
+        }
+
+        public Builder setType(int type) {
+            return this;
+        }
+
+        public DataSource build() {
+            if (dataType == null) throw new IllegalStateException("Must set data type");
+            return new DataSource(this);
+        }
+    }
+}
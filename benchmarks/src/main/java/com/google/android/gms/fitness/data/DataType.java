@@ -0,0 +1,44 @@
+package com.google.android.gms.fitness.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stand-in of the Google Fit DataType, with the data types used by the benchmarks.
+ */
+public final class DataType {
+    public static final DataType TYPE_STEP_COUNT_DELTA = new DataType("com.google.step_count.delta", Field.FIELD_STEPS);
+    public static final DataType TYPE_DISTANCE_DELTA = new DataType("com.google.distance.delta", Field.FIELD_DISTANCE);
+    public static final DataType TYPE_CALORIES_EXPENDED = new DataType("com.google.calories.expended", Field.FIELD_CALORIES);
+    public static final DataType TYPE_ACTIVITY_SEGMENT = new DataType("com.google.activity.segment", Field.FIELD_ACTIVITY);
+    public static final DataType TYPE_HEART_RATE_BPM = new DataType("com.google.heart_rate.bpm", Field.FIELD_BPM);
+    public static final DataType TYPE_WEIGHT = new DataType("com.google.weight", Field.FIELD_WEIGHT);
+
+    public static final DataType AGGREGATE_STEP_COUNT_DELTA = new DataType("com.google.step_count.delta", Field.FIELD_STEPS);
+    public static final DataType AGGREGATE_ACTIVITY_SUMMARY = new DataType("com.google.activity.summary",
+            Field.FIELD_ACTIVITY, Field.FIELD_DURATION, new Field("num_segments", Field.FORMAT_INT32));
+    public static final DataType AGGREGATE_HEART_RATE_SUMMARY = new DataType("com.google.heart_rate.summary",
+            Field.FIELD_AVERAGE, Field.FIELD_MAX, Field.FIELD_MIN);
+
+    private final String name;
+    private final List<Field> fields;
+
+    public DataType(String name, Field... fields) {
+        this.name = name;
+        this.fields = Arrays.asList(fields);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public int indexOf(Field field) {
+        int i = fields.indexOf(field);
+        if (i < 0) throw new IllegalArgumentException(field.getName() + " not a field of " + name);
+        return i;
+    }
+}
@@ -0,0 +1,39 @@
+package com.google.android.gms.fitness.data;
+
+/**
+ * Stand-in of the Google Fit Field, with the fields used by the benchmarked code.
+ */
+public final class Field {
+    public static final int FORMAT_INT32 = 1;
+    public static final int FORMAT_FLOAT = 2;
+    public static final int FORMAT_STRING = 3;
+
+    public static final Field FIELD_STEPS = new Field("steps", FORMAT_INT32);
+    public static final Field FIELD_DISTANCE = new Field("distance", FORMAT_FLOAT);
+    public static final Field FIELD_CALORIES = new Field("calories", FORMAT_FLOAT);
+    public static final Field FIELD_ACTIVITY = new Field("activity", FORMAT_INT32);
+    public static final Field FIELD_DURATION = new Field("duration", FORMAT_INT32);
+    public static final Field FIELD_BPM = new Field("bpm", FORMAT_FLOAT);
+    public static final Field FIELD_WEIGHT = new Field("weight", FORMAT_FLOAT);
+    public static final Field FIELD_HEIGHT = new Field("height", FORMAT_FLOAT);
+    public static final Field FIELD_PERCENTAGE = new Field("percentage", FORMAT_FLOAT);
+    public static final Field FIELD_AVERAGE = new Field("average", FORMAT_FLOAT);
+    public static final Field FIELD_MIN = new Field("min", FORMAT_FLOAT);
+    public static final Field FIELD_MAX = new Field("max", FORMAT_FLOAT);
+
+    private final String name;
+    private final int format;
+
+    public Field(String name, int format) {
+        this.name = name;
+        this.format = format;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+}
@@ -0,0 +1,68 @@
+package com.google.android.gms.fitness.data;
+
+/**
+ * Stand-in of the Google Fit Value: a mutable holder of an int, a float or a string.
+ */
+public final class Value {
+    // a few activities are enough for synthetic data
+    private static final String[] ACTIVITIES = {"in_vehicle", "biking", "on_foot", "still", "unknown", "tilting", "", "walking", "running"};
+
+    private final int format;
+    private int intValue;
+    private float floatValue;
+    private String stringValue;
+    private boolean set = false;
+
+    Value(int format) {
+        this.format = format;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public boolean isSet() {
+        return set;
+    }
+
+    public int asInt() {
+        return intValue;
+    }
+
+    public float asFloat() {
+        return floatValue;
+    }
+
+    public String asString() {
+        return stringValue;
+    }
+
+    public String asActivity() {
+        return ((intValue >= 0) && (intValue < ACTIVITIES.length)) ? ACTIVITIES[intValue] : "unknown";
+    }
+
+    public void setInt(int value) {
+        intValue = value;
+        set = true;
+    }
+
+    public void setFloat(float value) {
+        floatValue = value;
+        set = true;
+    }
+
+    public void setString(String value) {
+        stringValue = value;
+        set = true;
+    }
+
+    public void setActivity(String activity) {
+        for (int i = 0; i < ACTIVITIES.length; i++) {
+            if (ACTIVITIES[i].equals(activity)) {
+                setInt(i);
+                return;
+            }
+        }
+        setInt(4);
+    }
+}
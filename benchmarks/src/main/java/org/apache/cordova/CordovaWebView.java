@@ -0,0 +1,8 @@
+package org.apache.cordova;
+
+/**
+ * Stand-in of the Cordova web view, reduced to what the plugin uses to send results.
+ */
+public interface CordovaWebView {
+    void sendPluginResult(PluginResult pluginResult, String callbackId);
+}
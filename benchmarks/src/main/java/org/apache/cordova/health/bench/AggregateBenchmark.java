@@ -0,0 +1,73 @@
+package org.apache.cordova.health.bench;
+
+import com.google.android.gms.fitness.data.DataPoint;
+
+import org.apache.cordova.health.AggregateAccumulator;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulation loop of queryAggregated, over the points found in the buckets of an aggregated read.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AggregateBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private List<DataPoint> steps;
+    private List<DataPoint> heartRate;
+    private List<DataPoint> activities;
+
+    @Setup
+    public void setup() {
+        steps = Series.stepBuckets(size);
+        heartRate = Series.heartRateSummaries(size);
+        activities = Series.activitySummaries(size);
+    }
+
+    @Benchmark
+    public JSONObject steps() throws JSONException {
+        AggregateAccumulator acc = new AggregateAccumulator("steps");
+        for (DataPoint datapoint : steps) {
+            acc.add(datapoint);
+        }
+        return acc.toJSON();
+    }
+
+    @Benchmark
+    public JSONObject heartRateSummary() throws JSONException {
+        AggregateAccumulator acc = new AggregateAccumulator("heart_rate");
+        for (DataPoint datapoint : heartRate) {
+            acc.add(datapoint, 720);
+        }
+        return acc.toJSON();
+    }
+
+    @Benchmark
+    public JSONObject activity() throws JSONException {
+        AggregateAccumulator acc = new AggregateAccumulator("activity");
+        for (DataPoint datapoint : activities) {
+            acc.add(datapoint);
+        }
+        return acc.toJSON();
+    }
+}
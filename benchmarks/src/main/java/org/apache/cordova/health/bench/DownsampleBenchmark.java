@@ -0,0 +1,66 @@
+package org.apache.cordova.health.bench;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import org.apache.cordova.health.DataTypeCodec;
+import org.apache.cordova.health.Downsampler;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downsampling of a raw heart rate read to a chart-sized series.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DownsampleBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({Downsampler.LTTB, Downsampler.MINMAX, Downsampler.MEAN})
+    public String mode;
+
+    @Param({"500"})
+    public int maxPoints;
+
+    private List<DataSet> datasets;
+    private DataTypeCodec codec;
+
+    @Setup
+    public void setup() {
+        datasets = Series.heartRate(size);
+        codec = DataTypeCodec.floatCodec(DataType.TYPE_HEART_RATE_BPM, Field.FIELD_BPM, "bpm");
+    }
+
+    @Benchmark
+    public JSONArray downsample() throws JSONException {
+        long et = Series.START + size * 5000L;
+        Downsampler downsampler = new Downsampler(codec, mode, Series.START, et, maxPoints, 0);
+        for (DataSet dataset : datasets) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                downsampler.add(datapoint);
+            }
+        }
+        return downsampler.toJSON();
+    }
+}
@@ -0,0 +1,90 @@
+package org.apache.cordova.health.bench;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import org.apache.cordova.health.ColumnarResult;
+import org.apache.cordova.health.DataTypeCodec;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the points of a raw heart rate read, and serialisation of the result as sent over the bridge.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private List<DataSet> datasets;
+    private DataTypeCodec codec;
+    private JSONArray decoded;
+
+    @Setup
+    public void setup() throws JSONException {
+        datasets = Series.heartRate(size);
+        codec = DataTypeCodec.floatCodec(DataType.TYPE_HEART_RATE_BPM, Field.FIELD_BPM, "bpm");
+        decoded = decode();
+    }
+
+    // one JSON object per point, as query returns them
+    @Benchmark
+    public JSONArray decode() throws JSONException {
+        JSONArray resultset = new JSONArray();
+        for (DataSet dataset : datasets) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                resultset.put(codec.toJSON(datapoint));
+            }
+        }
+        return resultset;
+    }
+
+    // what the plugin result does with the decoded array
+    @Benchmark
+    public String serialize() {
+        return decoded.toString();
+    }
+
+    @Benchmark
+    public String columnar() throws JSONException {
+        ColumnarResult columns = new ColumnarResult(codec);
+        for (DataSet dataset : datasets) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                columns.add(datapoint);
+            }
+        }
+        return columns.toJSON().toString();
+    }
+
+    @Benchmark
+    public byte[] binary() throws JSONException {
+        ColumnarResult columns = new ColumnarResult(codec);
+        for (DataSet dataset : datasets) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                columns.add(datapoint);
+            }
+        }
+        return columns.toBytes();
+    }
+}
@@ -0,0 +1,134 @@
+package org.apache.cordova.health.bench;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic series, shaped like the results of Google Fit reads.
+ * Series are generated with a fixed seed, so that runs are comparable.
+ */
+public final class Series {
+    // 2020-01-01T00:00:00Z
+    public static final long START = 1577836800000L;
+
+    private Series() {
+    }
+
+    public static DataSource source(DataType dataType, String bundleId, String name) {
+        return new DataSource.Builder()
+                .setDataType(dataType)
+                .setAppPackageName(bundleId)
+                .setName(name)
+                .setType(DataSource.TYPE_RAW)
+                .build();
+    }
+
+    /**
+     * Heart rate from two sources, a sample every 5 seconds, as returned by a raw read: one data set per source.
+     */
+    public static List<DataSet> heartRate(int size) {
+        Random random = new Random(42);
+        DataSet watch = DataSet.create(source(DataType.TYPE_HEART_RATE_BPM, "com.example.watch", "wrist"));
+        DataSet strap = DataSet.create(source(DataType.TYPE_HEART_RATE_BPM, "com.example.strap", "chest"));
+        for (int i = 0; i < size; i++) {
+            DataSet dataset = (i % 4 == 0) ? strap : watch;
+            DataPoint datapoint = DataPoint.create(dataset.getDataSource());
+            long t = START + i * 5000L;
+            datapoint.setTimeInterval(t, t, TimeUnit.MILLISECONDS);
+            // slow daily rhythm with noise
+            float bpm = (float) (70 + 15 * Math.sin(i / 2000.0) + random.nextGaussian() * 4);
+            datapoint.getValue(Field.FIELD_BPM).setFloat(bpm);
+            dataset.add(datapoint);
+        }
+        List<DataSet> datasets = new ArrayList<DataSet>();
+        datasets.add(watch);
+        datasets.add(strap);
+        return datasets;
+    }
+
+    /**
+     * Aggregated steps, one point per minute, as found in the buckets of an aggregated read.
+     */
+    public static List<DataPoint> stepBuckets(int size) {
+        Random random = new Random(42);
+        DataSource source = source(DataType.AGGREGATE_STEP_COUNT_DELTA, "com.google.android.gms", "estimated_steps");
+        List<DataPoint> points = new ArrayList<DataPoint>(size);
+        for (int i = 0; i < size; i++) {
+            DataPoint datapoint = DataPoint.create(source);
+            long t = START + i * 60000L;
+            datapoint.setTimeInterval(t, t + 60000L, TimeUnit.MILLISECONDS);
+            datapoint.getValue(Field.FIELD_STEPS).setInt(random.nextInt(120));
+            points.add(datapoint);
+        }
+        return points;
+    }
+
+    /**
+     * Hourly heart rate summaries, as found in the buckets of an aggregated read.
+     */
+    public static List<DataPoint> heartRateSummaries(int size) {
+        Random random = new Random(42);
+        DataSource source = source(DataType.AGGREGATE_HEART_RATE_SUMMARY, "com.google.android.gms", "merge_heart_rate_bpm");
+        List<DataPoint> points = new ArrayList<DataPoint>(size);
+        for (int i = 0; i < size; i++) {
+            DataPoint datapoint = DataPoint.create(source);
+            long t = START + i * 3600000L;
+            datapoint.setTimeInterval(t, t + 3600000L, TimeUnit.MILLISECONDS);
+            float avg = 60 + random.nextFloat() * 30;
+            datapoint.getValue(Field.FIELD_AVERAGE).setFloat(avg);
+            datapoint.getValue(Field.FIELD_MIN).setFloat(avg - random.nextFloat() * 15);
+            datapoint.getValue(Field.FIELD_MAX).setFloat(avg + random.nextFloat() * 40);
+            points.add(datapoint);
+        }
+        return points;
+    }
+
+    /**
+     * Activity summaries, one per hour, as found in the buckets of an aggregated read.
+     */
+    public static List<DataPoint> activitySummaries(int size) {
+        Random random = new Random(42);
+        DataSource source = source(DataType.AGGREGATE_ACTIVITY_SUMMARY, "com.google.android.gms", "merge_activity_segments");
+        List<DataPoint> points = new ArrayList<DataPoint>(size);
+        for (int i = 0; i < size; i++) {
+            DataPoint datapoint = DataPoint.create(source);
+            long t = START + i * 3600000L;
+            datapoint.setTimeInterval(t, t + 3600000L, TimeUnit.MILLISECONDS);
+            datapoint.getValue(Field.FIELD_ACTIVITY).setInt(random.nextInt(9));
+            datapoint.getValue(Field.FIELD_DURATION).setInt(random.nextInt(3600000));
+            points.add(datapoint);
+        }
+        return points;
+    }
+
+    /**
+     * Heart rate samples as passed from JS to storeBatch.
+     */
+    public static JSONArray storeItems(int size) throws JSONException {
+        Random random = new Random(42);
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject item = new JSONObject();
+            long t = START + i * 5000L;
+            item.put("startDate", t);
+            item.put("endDate", t);
+            item.put("dataType", "heart_rate");
+            item.put("value", Float.toString(60 + random.nextFloat() * 40));
+            item.put("sourceName", (i % 4 == 0) ? "chest" : "wrist");
+            items.put(item);
+        }
+        return items;
+    }
+}
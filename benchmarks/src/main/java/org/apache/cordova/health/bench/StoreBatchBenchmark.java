@@ -0,0 +1,57 @@
+package org.apache.cordova.health.bench;
+
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import org.apache.cordova.health.DataTypeCodec;
+import org.apache.cordova.health.InsertBatch;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the data sets of storeBatch from the items passed from JS, with the InsertBatch of the plugin:
+ * validation, grouping by data type and source, and encoding of each point, as done before inserting them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StoreBatchBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private JSONArray items;
+    private InsertBatch.Codecs codecs;
+
+    @Setup
+    public void setup() throws JSONException {
+        items = Series.storeItems(size);
+        final DataTypeCodec codec = DataTypeCodec.floatCodec(DataType.TYPE_HEART_RATE_BPM, Field.FIELD_BPM, "bpm");
+        codecs = new InsertBatch.Codecs() {
+            @Override
+            public DataTypeCodec get(String datatype) {
+                return datatype.equals("heart_rate") ? codec : null;
+            }
+        };
+    }
+
+    @Benchmark
+    public InsertBatch build() {
+        return new InsertBatch(items, "com.example.app", codecs);
+    }
+}
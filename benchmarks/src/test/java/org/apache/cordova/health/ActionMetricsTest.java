@@ -0,0 +1,84 @@
+package org.apache.cordova.health;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what the metrics record for the results sent to JS.
+ */
+public class ActionMetricsTest {
+    private final CordovaWebView webView = new CordovaWebView() {
+        @Override
+        public void sendPluginResult(PluginResult pluginResult, String callbackId) {
+        }
+    };
+
+    private static JSONObject stats(ActionMetrics metrics, String action, String histogram) throws JSONException {
+        return metrics.toJSON().getJSONObject("actions").getJSONObject(action).getJSONObject(histogram);
+    }
+
+    private static JSONArray points(int size) throws JSONException {
+        JSONArray points = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject point = new JSONObject();
+            point.put("startDate", 1577836800000L + i * 5000L);
+            point.put("endDate", 1577836800000L + i * 5000L);
+            point.put("value", 60 + i % 40);
+            point.put("unit", "bpm");
+            points.put(point);
+        }
+        return points;
+    }
+
+    @Test
+    public void jsonResultRecordsItsSize() throws JSONException {
+        ActionMetrics metrics = new ActionMetrics();
+        JSONArray result = points(10);
+        metrics.trace("query", new CallbackContext("1", webView), webView).success(result);
+        assertEquals(result.toString().length(), stats(metrics, "query", "bytes").getLong("max"));
+    }
+
+    @Test
+    public void binaryResultRecordsItsEncodedSize() throws JSONException {
+        ActionMetrics metrics = new ActionMetrics();
+        byte[] result = new byte[300];
+        metrics.trace("query", new CallbackContext("1", webView), webView).success(result);
+        assertEquals(Base64.getEncoder().encodeToString(result).length(), stats(metrics, "query", "bytes").getLong("max"));
+    }
+
+    @Test
+    public void errorRecordsItsSize() throws JSONException {
+        ActionMetrics metrics = new ActionMetrics();
+        metrics.trace("store", new CallbackContext("1", webView), webView).error("Missing argument value");
+        assertEquals(JSONObject.quote("Missing argument value").length(), stats(metrics, "store", "bytes").getLong("max"));
+    }
+
+    @Test
+    public void coalescedResultIsSerialisedForTheLeader() throws JSONException {
+        ActionMetrics metrics = new ActionMetrics();
+        RequestCoalescer coalescer = new RequestCoalescer();
+        JSONObject opts = new JSONObject("{\"dataType\":\"heart_rate\",\"startDate\":0,\"endDate\":1}");
+        CallbackContext leader = metrics.trace("query", new CallbackContext("1", webView), webView);
+        CallbackContext flight = coalescer.join("query", opts, leader, webView);
+        CallbackContext joiner = metrics.trace("query", new CallbackContext("2", webView), webView);
+        assertNull(coalescer.join("query", opts, joiner, webView));
+
+        // large enough for the serialisation to take more than a microsecond
+        JSONArray result = points(20000);
+        flight.success(result);
+        assertTrue(stats(metrics, "query", "serialize").getLong("max") > 0);
+        assertEquals(1, metrics.toJSON().getJSONObject("actions").getJSONObject("query").getLong("coalesced"));
+        assertEquals(result.toString().length(), stats(metrics, "query", "bytes").getLong("max"));
+    }
+}
@@ -0,0 +1,331 @@
+package org.apache.cordova.health;
+
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and payload statistics of the actions, kept in rolling histograms over the last few minutes.
+ * Each request is traced through a CallbackContext wrapper; the time spent waiting for Google Fit
+ * and serialising the results is added by the code running the request, on the same thread.
+ * Recording is lock free, snapshots are approximate.
+ * MIT licensed.
+ */
+public class ActionMetrics {
+    private static final String TAG = "cordova-plugin-health";
+
+    // rolling window: 10 slots of 30 seconds
+    private static final int SLOTS = 10;
+    private static final long SLOT_MS = 30 * 1000;
+
+    // trace of the request running on the current thread, if any
+    private static final ThreadLocal<TracedContext> current = new ThreadLocal<TracedContext>();
+
+    private final ConcurrentHashMap<String, ActionStats> actions = new ConcurrentHashMap<String, ActionStats>();
+    private ScheduledExecutorService logExecutor;
+    private ScheduledFuture<?> logTask;
+
+    /**
+     * Wraps the callback context of a request, so that the request is measured until its final result.
+     */
+    public CallbackContext trace(String action, CallbackContext callbackContext, CordovaWebView webView) {
+        return new TracedContext(action, callbackContext.getCallbackId(), webView);
+    }
+
+    /**
+     * Marks the start of the execution of a request on the current thread, after waiting in the queue.
+     */
+    public static void begin(CallbackContext callbackContext) {
+        if (!(callbackContext instanceof TracedContext)) return;
+        TracedContext trace = (TracedContext) callbackContext;
+        trace.runStart = System.nanoTime();
+        current.set(trace);
+    }
+
+    /**
+     * Marks the execution of a request on the current thread, after a Google Fit call it was waiting for has completed.
+     */
+    public static void resume(CallbackContext callbackContext) {
+        if (!(callbackContext instanceof TracedContext)) return;
+        current.set((TracedContext) callbackContext);
+    }
+
+    /**
+     * Marks the end of the execution of a request on the current thread.
+     */
+    public static void end() {
+        current.remove();
+    }
+
+    /**
+     * Marks a request as answered by another identical one, it has no phases of its own.
+     */
+    public static void coalesced(CallbackContext callbackContext) {
+        if (!(callbackContext instanceof TracedContext)) return;
+        ((TracedContext) callbackContext).coalesced = true;
+    }
+
+    /**
+     * Builds the successful result of a request, adding the time spent serialising the message to its trace.
+     */
+    public static PluginResult result(CallbackContext callbackContext, JSONObject message) {
+        long t0 = System.nanoTime();
+        PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+        addSerialize(callbackContext, System.nanoTime() - t0);
+        return result;
+    }
+
+    public static PluginResult result(CallbackContext callbackContext, JSONArray message) {
+        long t0 = System.nanoTime();
+        PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+        addSerialize(callbackContext, System.nanoTime() - t0);
+        return result;
+    }
+
+    private static void addSerialize(CallbackContext callbackContext, long nanos) {
+        if (callbackContext instanceof TracedContext) ((TracedContext) callbackContext).serializeNs += nanos;
+    }
+
+    public static void addFit(long nanos) {
+        TracedContext trace = current.get();
+        if (trace != null) trace.fitNs += nanos;
+    }
+
+    public static void addSerialize(long nanos) {
+        TracedContext trace = current.get();
+        if (trace != null) trace.serializeNs += nanos;
+    }
+
+    public static void addPoints(long points) {
+        TracedContext trace = current.get();
+        if (trace != null) trace.points += points;
+    }
+
+    /**
+     * Gets the statistics of all the actions, times are in microseconds.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("window", SLOTS * SLOT_MS);
+        JSONObject acts = new JSONObject();
+        for (Map.Entry<String, ActionStats> entry : actions.entrySet()) {
+            acts.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        obj.put("actions", acts);
+        return obj;
+    }
+
+    public void reset() {
+        actions.clear();
+    }
+
+    /**
+     * Logs the statistics every interval ms, stops logging if interval is 0.
+     */
+    public synchronized void setLogInterval(long interval) {
+        if (logTask != null) {
+            logTask.cancel(false);
+            logTask = null;
+        }
+        if (interval <= 0) return;
+        if (logExecutor == null) logExecutor = Executors.newSingleThreadScheduledExecutor();
+        logTask = logExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.i(TAG, "Metrics: " + toJSON().toString());
+                } catch (JSONException ex) {
+                    Log.e(TAG, "Cannot log metrics", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (logExecutor != null) logExecutor.shutdownNow();
+    }
+
+    private ActionStats stats(String action) {
+        ActionStats stats = actions.get(action);
+        if (stats == null) {
+            ActionStats created = new ActionStats();
+            stats = actions.putIfAbsent(action, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    /**
+     * Callback context that measures the request until its final result is sent.
+     */
+    private class TracedContext extends CallbackContext {
+        private final String action;
+        private final long created = System.nanoTime();
+        private long runStart;
+        private long fitNs;
+        private long serializeNs;
+        private long points;
+        private long bytes;
+        private volatile boolean coalesced = false;
+
+        TracedContext(String action, String callbackId, CordovaWebView webView) {
+            super(callbackId, webView);
+            this.action = action;
+        }
+
+        @Override
+        public void success(JSONObject message) {
+            sendPluginResult(result(this, message));
+        }
+
+        @Override
+        public void success(JSONArray message) {
+            sendPluginResult(result(this, message));
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            boolean wasFinished = isFinished();
+            super.sendPluginResult(pluginResult);
+            if (wasFinished) return;
+            // the message as encoded for the bridge: JSON text, quoted strings, base64 for binary results
+            String message = pluginResult.getMessage();
+            if (message != null) bytes += message.length();
+            if (!pluginResult.getKeepCallback()) {
+                record(pluginResult.getStatus() != PluginResult.Status.OK.ordinal());
+            }
+        }
+
+        private void record(boolean error) {
+            long now = System.nanoTime();
+            // actions run on the bridge thread have no queue
+            long start = (runStart != 0) ? runStart : created;
+            ActionStats stats = stats(action);
+            stats.count.incrementAndGet();
+            if (error) stats.errors.incrementAndGet();
+            stats.total.record((now - created) / 1000);
+            if (coalesced) {
+                // the wait for the other request would be counted as decoding, phases are recorded by that request only
+                stats.coalesced.incrementAndGet();
+                return;
+            }
+            stats.queue.record((start - created) / 1000);
+            stats.fit.record(fitNs / 1000);
+            stats.serialize.record(serializeNs / 1000);
+            // what is left is the time spent decoding and building the results
+            stats.decode.record(Math.max(0, (now - start) - fitNs - serializeNs) / 1000);
+            stats.points.record(points);
+            stats.bytes.record(bytes);
+        }
+    }
+
+    private static class ActionStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final RollingHistogram total = new RollingHistogram();
+        final RollingHistogram queue = new RollingHistogram();
+        final RollingHistogram fit = new RollingHistogram();
+        final RollingHistogram decode = new RollingHistogram();
+        final RollingHistogram serialize = new RollingHistogram();
+        final RollingHistogram points = new RollingHistogram();
+        final RollingHistogram bytes = new RollingHistogram();
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("count", count.get());
+            obj.put("errors", errors.get());
+            obj.put("coalesced", coalesced.get());
+            obj.put("total", total.toJSON());
+            obj.put("queue", queue.toJSON());
+            obj.put("fit", fit.toJSON());
+            obj.put("decode", decode.toJSON());
+            obj.put("serialize", serialize.toJSON());
+            obj.put("points", points.toJSON());
+            obj.put("bytes", bytes.toJSON());
+            return obj;
+        }
+    }
+
+    /**
+     * Histogram with power of two buckets over a ring of time slots.
+     * A slot is cleared by the first recording that finds it holding an expired period,
+     * values recorded concurrently with the clearing may be lost.
+     */
+    private static class RollingHistogram {
+        private static final int BUCKETS = 64;
+        private final AtomicLongArray periods = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS * BUCKETS);
+        private final AtomicLongArray sums = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray maxes = new AtomicLongArray(SLOTS);
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            long period = System.currentTimeMillis() / SLOT_MS;
+            int slot = (int) (period % SLOTS);
+            long old = periods.get(slot);
+            if ((old != period) && periods.compareAndSet(slot, old, period)) {
+                for (int b = 0; b < BUCKETS; b++) counts.set(slot * BUCKETS + b, 0);
+                sums.set(slot, 0);
+                maxes.set(slot, 0);
+            }
+            // bucket b holds values up to 2^b - 1
+            counts.incrementAndGet(slot * BUCKETS + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            sums.addAndGet(slot, value);
+            long max = maxes.get(slot);
+            while ((value > max) && !maxes.compareAndSet(slot, max, value)) max = maxes.get(slot);
+        }
+
+        JSONObject toJSON() throws JSONException {
+            long period = System.currentTimeMillis() / SLOT_MS;
+            long[] merged = new long[BUCKETS];
+            long n = 0;
+            long sum = 0;
+            long max = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (periods.get(slot) <= period - SLOTS) continue;
+                for (int b = 0; b < BUCKETS; b++) {
+                    long c = counts.get(slot * BUCKETS + b);
+                    merged[b] += c;
+                    n += c;
+                }
+                sum += sums.get(slot);
+                max = Math.max(max, maxes.get(slot));
+            }
+            JSONObject obj = new JSONObject();
+            obj.put("count", n);
+            obj.put("mean", (n == 0) ? 0 : sum / n);
+            obj.put("p50", percentile(merged, n, 0.5, max));
+            obj.put("p90", percentile(merged, n, 0.9, max));
+            obj.put("p99", percentile(merged, n, 0.99, max));
+            obj.put("max", max);
+            return obj;
+        }
+
+        // upper bound of the bucket containing the percentile
+        private static long percentile(long[] buckets, long n, double p, long max) {
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(n * p);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= rank) return Math.min(max, (b == 0) ? 0 : (1L << b) - 1);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.Field;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running totals of an aggregated query, kept in primitives so that nothing is allocated per data point.
+ * Activities are summed in an array indexed by the Fit activity constant.
+ * The JSON result is built only once, at the end.
+ * MIT licensed.
+ */
+public class AggregateAccumulator {
+    private static final int STEPS = 0;
+    private static final int DISTANCE = 1;
+    private static final int CALORIES = 2;
+    private static final int ACTIVITY = 3;
+    private static final int SUMMARY = 4;
+
+    private final int kind;
+    private final String unit;
+
+    private int count = 0;
+    private long start = Long.MAX_VALUE;
+    private long end = Long.MIN_VALUE;
+    private long longSum = 0;
+    private double doubleSum = 0;
+    // for summaries, the sum of the averages and the extremes
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    // for summaries with known sample counts, the averages weighted by the number of samples they cover
+    private boolean counted = false;
+    private long samples = 0;
+    private double weightedSum = 0;
+    private double weights = 0;
+    // durations by activity constant, names are looked up only the first time an activity is found
+    private long[] activityDurations;
+    private String[] activityNames;
+
+    /**
+     * @param datatype one of steps, distance, calories, calories.basal, activity, heart_rate, weight, height or fat_percentage
+     */
+    public AggregateAccumulator(String datatype) {
+        if (datatype.equalsIgnoreCase("steps")) {
+            kind = STEPS;
+            unit = "count";
+        } else if (datatype.equalsIgnoreCase("distance")) {
+            kind = DISTANCE;
+            unit = "m";
+        } else if (datatype.equalsIgnoreCase("calories") || datatype.equalsIgnoreCase("calories.basal")) {
+            kind = CALORIES;
+            unit = "kcal";
+        } else if (datatype.equalsIgnoreCase("activity")) {
+            kind = ACTIVITY;
+            unit = "activitySummary";
+            activityDurations = new long[128];
+            activityNames = new String[128];
+        } else if (datatype.equalsIgnoreCase("heart_rate")) {
+            // Fit summaries have min, average and max
+            kind = SUMMARY;
+            unit = "bpm";
+        } else if (datatype.equalsIgnoreCase("weight")) {
+            kind = SUMMARY;
+            unit = "kg";
+        } else if (datatype.equalsIgnoreCase("height")) {
+            kind = SUMMARY;
+            unit = "m";
+        } else if (datatype.equalsIgnoreCase("fat_percentage")) {
+            kind = SUMMARY;
+            unit = "percent";
+        } else {
+            throw new IllegalArgumentException("Datatype " + datatype + " not supported");
+        }
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Adds an aggregated data point to the totals.
+     */
+    public void add(DataPoint datapoint) {
+        long nsd = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+        long ned = datapoint.getEndTime(TimeUnit.MILLISECONDS);
+        if (nsd < start) start = nsd;
+        if (ned > end) end = ned;
+        count++;
+
+        switch (kind) {
+            case STEPS:
+                longSum += datapoint.getValue(Field.FIELD_STEPS).asInt();
+                break;
+            case DISTANCE:
+                doubleSum += datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
+                break;
+            case CALORIES:
+                doubleSum += datapoint.getValue(Field.FIELD_CALORIES).asFloat();
+                break;
+            case ACTIVITY:
+                int activity = datapoint.getValue(Field.FIELD_ACTIVITY).asInt();
+                if (activity < 0) break;
+                if (activity >= activityDurations.length) {
+                    int capacity = Math.max(activity + 1, activityDurations.length * 2);
+                    activityDurations = Arrays.copyOf(activityDurations, capacity);
+                    activityNames = Arrays.copyOf(activityNames, capacity);
+                }
+                if (activityNames[activity] == null) {
+                    activityNames[activity] = datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
+                }
+                activityDurations[activity] += datapoint.getValue(Field.FIELD_DURATION).asInt();
+                break;
+            case SUMMARY:
+                doubleSum += datapoint.getValue(Field.FIELD_AVERAGE).asFloat();
+                float nmin = datapoint.getValue(Field.FIELD_MIN).asFloat();
+                float nmax = datapoint.getValue(Field.FIELD_MAX).asFloat();
+                if (nmin < min) min = nmin;
+                if (nmax > max) max = nmax;
+                break;
+        }
+    }
+
+    /**
+     * Adds an aggregated summary data point, together with the number of raw samples it summarises,
+     * so that the average is weighted and the number of samples is returned.
+     */
+    public void add(DataPoint datapoint, long samples) {
+        add(datapoint);
+        if (kind != SUMMARY) return;
+        // a summary always covers at least one sample, even if it was not counted
+        double weight = Math.max(1, samples);
+        weightedSum += datapoint.getValue(Field.FIELD_AVERAGE).asFloat() * weight;
+        weights += weight;
+        this.samples += samples;
+        counted = true;
+    }
+
+    /**
+     * Builds the result over the time range of the data points that have been added,
+     * an empty object if none.
+     */
+    public JSONObject toJSON() throws JSONException {
+        if (isEmpty()) return new JSONObject();
+        return toJSON(start, end);
+    }
+
+    /**
+     * Builds the result over the given time range, with value 0 (or no activities) if no data points have been added.
+     * Summaries have no value at all if no data points have been added.
+     */
+    public JSONObject toJSON(long st, long et) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("startDate", st);
+        obj.put("endDate", et);
+        switch (kind) {
+            case STEPS:
+                obj.put("value", longSum);
+                break;
+            case DISTANCE:
+            case CALORIES:
+                obj.put("value", doubleSum);
+                break;
+            case ACTIVITY:
+                JSONObject actobj = new JSONObject();
+                for (int i = 0; i < activityNames.length; i++) {
+                    if (activityNames[i] == null) continue;
+                    JSONObject summary = new JSONObject();
+                    summary.put("duration", activityDurations[i]);
+                    actobj.put(activityNames[i], summary);
+                }
+                obj.put("value", actobj);
+                break;
+            case SUMMARY:
+                if (isEmpty()) break;
+                JSONObject summary = new JSONObject();
+                summary.put("min", min);
+                summary.put("avg", counted ? (weightedSum / weights) : (doubleSum / count));
+                summary.put("max", max);
+                if (counted) summary.put("count", samples);
+                obj.put("value", summary);
+                break;
+        }
+        obj.put("unit", unit);
+        return obj;
+    }
+}
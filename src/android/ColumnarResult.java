@@ -0,0 +1,136 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSource;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a query in columnar form: parallel arrays of start times, end times, values and sources,
+ * where sources are indexes into a table of unique sources.
+ * This avoids creating a JSON object per data point, and can be serialised to binary for numeric data types.
+ * MIT licensed.
+ */
+public class ColumnarResult {
+    private final DataTypeCodec codec;
+    private int size = 0;
+    private long[] starts = new long[64];
+    private long[] ends = new long[64];
+    private int[] sources = new int[64];
+    // only one of the two is used, depending on the data type
+    private double[] numericValues;
+    private JSONArray values;
+
+    private final Map<String, Integer> sourceIndexes = new HashMap<String, Integer>();
+    private final JSONArray sourceTable = new JSONArray();
+
+    public ColumnarResult(DataTypeCodec codec) {
+        this.codec = codec;
+        if (codec.isNumeric()) numericValues = new double[64];
+        else values = new JSONArray();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(DataPoint datapoint) throws JSONException {
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            if (numericValues != null) numericValues = Arrays.copyOf(numericValues, capacity);
+        }
+        starts[size] = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+        ends[size] = datapoint.getEndTime(TimeUnit.MILLISECONDS);
+        sources[size] = sourceIndex(datapoint.getOriginalDataSource());
+        if (numericValues != null) numericValues[size] = codec.numericValue(datapoint);
+        else values.put(codec.value(datapoint));
+        size++;
+    }
+
+    private int sourceIndex(DataSource dataSource) throws JSONException {
+        if (dataSource == null) return -1;
+        String key = dataSource.getName() + "\n" + dataSource.getAppPackageName();
+        Integer index = sourceIndexes.get(key);
+        if (index == null) {
+            index = sourceTable.length();
+            JSONObject source = new JSONObject();
+            source.put("sourceName", dataSource.getName());
+            source.put("sourceBundleId", dataSource.getAppPackageName());
+            sourceTable.put(source);
+            sourceIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Serialises to JSON, as { startDate: [], endDate: [], value: [], source: [], sources: [], unit: '' }.
+     * Missing sources have index -1.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONArray startArr = new JSONArray();
+        JSONArray endArr = new JSONArray();
+        JSONArray sourceArr = new JSONArray();
+        JSONArray valueArr = values;
+        if (numericValues != null) valueArr = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            startArr.put(starts[i]);
+            endArr.put(ends[i]);
+            sourceArr.put(sources[i]);
+            if (numericValues != null) valueArr.put(numericValues[i]);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("startDate", startArr);
+        obj.put("endDate", endArr);
+        obj.put("value", valueArr);
+        obj.put("source", sourceArr);
+        obj.put("sources", sourceTable);
+        if (codec.getUnit() != null) obj.put("unit", codec.getUnit());
+        return obj;
+    }
+
+    /**
+     * Serialises to binary, only for numeric data types.
+     * The layout, little endian, is:
+     * int32 number of points N, int32 length in bytes M of the header,
+     * float64[N] start dates (ms), float64[N] end dates (ms), float64[N] values, int32[N] source indexes,
+     * then M bytes of UTF-8 JSON { sources: [], unit: '' }.
+     */
+    public byte[] toBytes() throws JSONException {
+        if (numericValues == null) {
+            throw new UnsupportedOperationException("Binary format is only supported for numeric data types");
+        }
+        JSONObject header = new JSONObject();
+        header.put("sources", sourceTable);
+        if (codec.getUnit() != null) header.put("unit", codec.getUnit());
+        byte[] headerBytes;
+        try {
+            headerBytes = header.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new RuntimeException(ex);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + size * (8 + 8 + 8 + 4) + headerBytes.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(size);
+        buffer.putInt(headerBytes.length);
+        for (int i = 0; i < size; i++) buffer.putDouble(starts[i]);
+        for (int i = 0; i < size; i++) buffer.putDouble(ends[i]);
+        for (int i = 0; i < size; i++) buffer.putDouble(numericValues[i]);
+        for (int i = 0; i < size; i++) buffer.putInt(sources[i]);
+        buffer.put(headerBytes);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,214 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts the values of data points of a given data type from and to their JSON representation.
+ * reference for fields: https://developers.google.com/android/reference/com/google/android/gms/fitness/data/Field.html
+ * MIT licensed.
+ */
+public abstract class DataTypeCodec {
+    private final DataType dataType;
+    private final String unit;
+
+    protected DataTypeCodec(DataType dataType, String unit) {
+        this.dataType = dataType;
+        this.unit = unit;
+    }
+
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    /**
+     * @return the unit of the values, null if the values have no unit
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return true if values are numbers, see numericValue()
+     */
+    public boolean isNumeric() {
+        return false;
+    }
+
+    /**
+     * Gets the value of the data point as it is represented in JSON.
+     */
+    public abstract Object value(DataPoint datapoint) throws JSONException;
+
+    /**
+     * Gets the value of the data point as a number, without boxing it.
+     * Only supported if isNumeric() is true.
+     */
+    public double numericValue(DataPoint datapoint) {
+        throw new UnsupportedOperationException("Values of " + dataType.getName() + " are not numeric");
+    }
+
+    /**
+     * Puts the value (and the unit) of the data point into the JSON object returned to JS.
+     */
+    public void decode(DataPoint datapoint, JSONObject obj) throws JSONException {
+        obj.put("value", value(datapoint));
+        if (unit != null) obj.put("unit", unit);
+    }
+
+    /**
+     * Converts a raw data point into the JSON object returned to JS,
+     * with its time range, its source and its value.
+     */
+    public JSONObject toJSON(DataPoint datapoint) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("startDate", datapoint.getStartTime(TimeUnit.MILLISECONDS));
+        obj.put("endDate", datapoint.getEndTime(TimeUnit.MILLISECONDS));
+        DataSource dataSource = datapoint.getOriginalDataSource();
+        if (dataSource != null) {
+            obj.put("sourceName", dataSource.getName());
+            obj.put("sourceBundleId", dataSource.getAppPackageName());
+        }
+        decode(datapoint, obj);
+        return obj;
+    }
+
+    /**
+     * Sets the value of the data point from the "value" field of the JSON object passed from JS.
+     */
+    public abstract void encode(JSONObject item, DataPoint datapoint) throws JSONException;
+
+    /**
+     * Codec of data types with a single float field.
+     */
+    public static DataTypeCodec floatCodec(DataType dataType, final Field field, String unit) {
+        return new DataTypeCodec(dataType, unit) {
+            @Override
+            public boolean isNumeric() {
+                return true;
+            }
+
+            @Override
+            public Object value(DataPoint datapoint) {
+                return datapoint.getValue(field).asFloat();
+            }
+
+            @Override
+            public double numericValue(DataPoint datapoint) {
+                return datapoint.getValue(field).asFloat();
+            }
+
+            @Override
+            public void encode(JSONObject item, DataPoint datapoint) throws JSONException {
+                String value = item.getString("value");
+                datapoint.getValue(field).setFloat(Float.parseFloat(value));
+            }
+        };
+    }
+
+    /**
+     * Codec of data types with a single int field.
+     */
+    public static DataTypeCodec intCodec(DataType dataType, final Field field, String unit) {
+        return new DataTypeCodec(dataType, unit) {
+            @Override
+            public boolean isNumeric() {
+                return true;
+            }
+
+            @Override
+            public Object value(DataPoint datapoint) {
+                return datapoint.getValue(field).asInt();
+            }
+
+            @Override
+            public double numericValue(DataPoint datapoint) {
+                return datapoint.getValue(field).asInt();
+            }
+
+            @Override
+            public void encode(JSONObject item, DataPoint datapoint) throws JSONException {
+                String value = item.getString("value");
+                datapoint.getValue(field).setInt(Integer.parseInt(value));
+            }
+        };
+    }
+
+    /**
+     * Codec of activity segments, values are the names of the activities.
+     */
+    public static DataTypeCodec activityCodec() {
+        return new DataTypeCodec(DataType.TYPE_ACTIVITY_SEGMENT, "activityType") {
+            @Override
+            public Object value(DataPoint datapoint) {
+                return datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
+            }
+
+            @Override
+            public void encode(JSONObject item, DataPoint datapoint) throws JSONException {
+                datapoint.getValue(Field.FIELD_ACTIVITY).setActivity(item.getString("value"));
+            }
+        };
+    }
+
+    /**
+     * Codec of the custom gender data type, which has only one string field named gender.
+     */
+    public static DataTypeCodec genderCodec(DataType dataType) {
+        return new DataTypeCodec(dataType, null) {
+            @Override
+            public Object value(DataPoint datapoint) {
+                //there should be only one field named gender
+                String gender = null;
+                for (Field f : getDataType().getFields()) {
+                    gender = datapoint.getValue(f).asString();
+                }
+                return gender;
+            }
+
+            @Override
+            public void encode(JSONObject item, DataPoint datapoint) throws JSONException {
+                String value = item.getString("value");
+                for (Field f : getDataType().getFields()) {
+                    datapoint.getValue(f).setString(value);
+                }
+            }
+        };
+    }
+
+    /**
+     * Codec of the custom date of birth data type, which has three int fields: day, month and year.
+     */
+    public static DataTypeCodec dateOfBirthCodec(DataType dataType) {
+        return new DataTypeCodec(dataType, null) {
+            @Override
+            public Object value(DataPoint datapoint) throws JSONException {
+                JSONObject dob = new JSONObject();
+                for (Field f : getDataType().getFields()) {
+                    dob.put(f.getName(), datapoint.getValue(f).asInt());
+                }
+                return dob;
+            }
+
+            @Override
+            public void encode(JSONObject item, DataPoint datapoint) throws JSONException {
+                JSONObject dob = item.getJSONObject("value");
+                for (Field f : getDataType().getFields()) {
+                    if (f.getName().equalsIgnoreCase("day"))
+                        datapoint.getValue(f).setInt(dob.getInt("day"));
+                    if (f.getName().equalsIgnoreCase("month"))
+                        datapoint.getValue(f).setInt(dob.getInt("month"));
+                    if (f.getName().equalsIgnoreCase("year"))
+                        datapoint.getValue(f).setInt(dob.getInt("year"));
+                }
+            }
+        };
+    }
+}
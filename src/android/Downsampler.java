@@ -0,0 +1,198 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reduces the points of a query over a numeric data type to a bounded number, in a single pass over the points.
+ * The time range is divided into buckets of equal length, and only a constant amount of data is kept per bucket,
+ * so memory depends on the number of buckets and not on the number of points read.
+ * Points can be added in any order.
+ * Modes:
+ * - lttb: one point per bucket, chosen with Largest-Triangle-Three-Buckets among the minimum and maximum of the bucket
+ * (MinMaxLTTB); the first and the last buckets keep their first and last point
+ * - minmax: the minimum and the maximum of each bucket, in time order
+ * - mean: the mean of the values of each bucket, spanning the whole bucket
+ * MIT licensed.
+ */
+public class Downsampler {
+    public static final String LTTB = "lttb";
+    public static final String MINMAX = "minmax";
+    public static final String MEAN = "mean";
+    // bound on the memory used with a small resolution over a long range
+    public static final int MAX_BUCKETS = 100000;
+
+    private final DataTypeCodec codec;
+    private final String mode;
+    private final long st;
+    private final long et;
+    private final long width;
+    private final Bucket[] buckets;
+
+    private static class Bucket {
+        int count;
+        double sumTime;
+        double sumValue;
+        DataPoint first;
+        long firstTime;
+        DataPoint last;
+        long lastTime;
+        DataPoint min;
+        double minValue;
+        long minTime;
+        DataPoint max;
+        double maxValue;
+        long maxTime;
+    }
+
+    /**
+     * @param maxPoints  maximum number of points returned, 0 if resolution is used
+     * @param resolution length of a bucket in ms, 0 if maxPoints is used
+     */
+    public Downsampler(DataTypeCodec codec, String mode, long st, long et, int maxPoints, long resolution) {
+        this.codec = codec;
+        this.mode = mode;
+        this.st = st;
+        this.et = et;
+        long range = Math.max(1, et - st);
+        int n;
+        if (resolution > 0) {
+            n = (int) Math.min(MAX_BUCKETS, bucketCount(st, et, resolution));
+        } else {
+            // min and max take two points per bucket
+            n = mode.equals(MINMAX) ? maxPoints / 2 : maxPoints;
+        }
+        n = Math.max(1, n);
+        this.width = (range + n - 1) / n;
+        this.buckets = new Bucket[n];
+    }
+
+    public static boolean isMode(String mode) {
+        return mode.equals(LTTB) || mode.equals(MINMAX) || mode.equals(MEAN);
+    }
+
+    /**
+     * Number of buckets of the given resolution needed to cover a time range.
+     */
+    public static long bucketCount(long st, long et, long resolution) {
+        long range = Math.max(1, et - st);
+        return (range + resolution - 1) / resolution;
+    }
+
+    public void add(DataPoint datapoint) {
+        long t = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+        double v = codec.numericValue(datapoint);
+        // points starting before the range are found in the first bucket, as in a query
+        int i = (int) Math.max(0, Math.min(buckets.length - 1, (t - st) / width));
+        Bucket b = buckets[i];
+        if (b == null) {
+            b = new Bucket();
+            buckets[i] = b;
+        }
+        if ((b.count == 0) || (t < b.firstTime)) {
+            b.first = datapoint;
+            b.firstTime = t;
+        }
+        if ((b.count == 0) || (t >= b.lastTime)) {
+            b.last = datapoint;
+            b.lastTime = t;
+        }
+        if ((b.count == 0) || (v < b.minValue)) {
+            b.min = datapoint;
+            b.minValue = v;
+            b.minTime = t;
+        }
+        if ((b.count == 0) || (v > b.maxValue)) {
+            b.max = datapoint;
+            b.maxValue = v;
+            b.maxTime = t;
+        }
+        b.count++;
+        b.sumTime += t;
+        b.sumValue += v;
+    }
+
+    /**
+     * Gets the downsampled points, in the same form as the results of a query.
+     */
+    public JSONArray toJSON() throws JSONException {
+        JSONArray result = new JSONArray();
+        if (mode.equals(MEAN)) {
+            for (int i = 0; i < buckets.length; i++) {
+                Bucket b = buckets[i];
+                if (b == null) continue;
+                JSONObject obj = new JSONObject();
+                obj.put("startDate", st + i * width);
+                obj.put("endDate", Math.min(et, st + (i + 1) * width));
+                obj.put("value", b.sumValue / b.count);
+                if (codec.getUnit() != null) obj.put("unit", codec.getUnit());
+                result.put(obj);
+            }
+        } else if (mode.equals(MINMAX)) {
+            for (Bucket b : buckets) {
+                if (b == null) continue;
+                if (b.min == b.max) {
+                    result.put(codec.toJSON(b.min));
+                } else if (b.minTime <= b.maxTime) {
+                    result.put(codec.toJSON(b.min));
+                    result.put(codec.toJSON(b.max));
+                } else {
+                    result.put(codec.toJSON(b.max));
+                    result.put(codec.toJSON(b.min));
+                }
+            }
+        } else {
+            lttb(result);
+        }
+        return result;
+    }
+
+    private void lttb(JSONArray result) throws JSONException {
+        int firstBucket = -1;
+        int lastBucket = -1;
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == null) continue;
+            if (firstBucket < 0) firstBucket = i;
+            lastBucket = i;
+        }
+        if (firstBucket < 0) return;
+
+        // the selected point of the previous bucket
+        Bucket a = buckets[firstBucket];
+        long at = a.firstTime;
+        double av = codec.numericValue(a.first);
+        result.put(codec.toJSON(a.first));
+        if (lastBucket == firstBucket) {
+            if (a.last != a.first) result.put(codec.toJSON(a.last));
+            return;
+        }
+        for (int i = firstBucket + 1; i < lastBucket; i++) {
+            Bucket b = buckets[i];
+            if (b == null) continue;
+            // the average point of the next non empty bucket
+            int next = i + 1;
+            while (buckets[next] == null) next++;
+            Bucket c = buckets[next];
+            double ct = c.sumTime / c.count;
+            double cv = c.sumValue / c.count;
+            // the triangle with the largest area, among the minimum and the maximum of the bucket
+            double minArea = Math.abs((at - ct) * (b.minValue - av) - (at - b.minTime) * (cv - av));
+            double maxArea = Math.abs((at - ct) * (b.maxValue - av) - (at - b.maxTime) * (cv - av));
+            if (maxArea > minArea) {
+                result.put(codec.toJSON(b.max));
+                at = b.maxTime;
+                av = b.maxValue;
+            } else {
+                result.put(codec.toJSON(b.min));
+                at = b.minTime;
+                av = b.minValue;
+            }
+        }
+        result.put(codec.toJSON(buckets[lastBucket].last));
+    }
+}
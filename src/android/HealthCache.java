@@ -0,0 +1,166 @@
+package org.apache.cordova.health;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Local cache of the data read from Google Fit.
+ * Only "cold" data, old enough not to change any more, is stored here.
+ * MIT licensed.
+ */
+public class HealthCache extends SQLiteOpenHelper {
+    private static final String DB_NAME = "cordova-plugin-health-cache.db";
+    // version 2: ranges include the points overlapping them, not only those starting in them
+    private static final int DB_VERSION = 2;
+
+    public HealthCache(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // raw data points, stored as they are returned to JS
+        db.execSQL("CREATE TABLE points (datatype TEXT NOT NULL, start INTEGER NOT NULL, end INTEGER NOT NULL, " +
+                "sourceBundleId TEXT, json TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX points_idx ON points (datatype, start)");
+        // time ranges for which all the points of a data type are in the cache
+        db.execSQL("CREATE TABLE ranges (datatype TEXT NOT NULL, start INTEGER NOT NULL, end INTEGER NOT NULL)");
+        // results of aggregated queries
+        db.execSQL("CREATE TABLE aggregates (key TEXT PRIMARY KEY, json TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it's a cache, it can be rebuilt
+        db.execSQL("DROP TABLE IF EXISTS points");
+        db.execSQL("DROP TABLE IF EXISTS ranges");
+        db.execSQL("DROP TABLE IF EXISTS aggregates");
+        onCreate(db);
+    }
+
+    /**
+     * Gets how far the cache covers a data type from st on: all the points between st and the returned time are in the cache.
+     *
+     * @return st if the cache has nothing from st on
+     */
+    public synchronized long coveredEnd(String datatype, long st) {
+        // stored ranges are merged, so at most one contains st
+        Cursor c = getReadableDatabase().query("ranges", new String[]{"MAX(end)"},
+                "datatype = ? AND start <= ? AND end > ?",
+                new String[]{datatype, Long.toString(st), Long.toString(st)}, null, null, null);
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) return c.getLong(0);
+            return st;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gets the cached points of a data type overlapping the range between st (included) and et (excluded), sorted by start time.
+     * As in a read from Fit, points starting before st and ending after it are included.
+     */
+    public synchronized JSONArray getPoints(String datatype, long st, long et) throws JSONException {
+        JSONArray points = new JSONArray();
+        Cursor c = getReadableDatabase().query("points", new String[]{"json"},
+                "datatype = ? AND start < ? AND (start >= ? OR end > ?)",
+                new String[]{datatype, Long.toString(et), Long.toString(st), Long.toString(st)}, null, null, "start");
+        try {
+            while (c.moveToNext()) {
+                points.put(new JSONObject(c.getString(0)));
+            }
+        } finally {
+            c.close();
+        }
+        return points;
+    }
+
+    /**
+     * Replaces the cached points of a data type overlapping the range between st (included) and et (excluded)
+     * and marks the range as covered.
+     * Points overlapping the boundary of an adjacent range are replaced, so they are never stored twice.
+     */
+    public synchronized void putPoints(String datatype, long st, long et, List<JSONObject> points) throws JSONException {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("points", "datatype = ? AND start < ? AND (start >= ? OR end > ?)",
+                    new String[]{datatype, Long.toString(et), Long.toString(st), Long.toString(st)});
+            ContentValues values = new ContentValues();
+            for (JSONObject point : points) {
+                values.clear();
+                values.put("datatype", datatype);
+                values.put("start", point.getLong("startDate"));
+                values.put("end", point.getLong("endDate"));
+                if (point.has("sourceBundleId")) values.put("sourceBundleId", point.getString("sourceBundleId"));
+                values.put("json", point.toString());
+                db.insert("points", null, values);
+            }
+            addRange(db, datatype, st, et);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // merges the new range with the overlapping ones already stored
+    private void addRange(SQLiteDatabase db, String datatype, long st, long et) {
+        String[] selArgs = new String[]{datatype, Long.toString(et), Long.toString(st)};
+        Cursor c = db.query("ranges", new String[]{"start", "end"},
+                "datatype = ? AND start <= ? AND end >= ?", selArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                if (c.getLong(0) < st) st = c.getLong(0);
+                if (c.getLong(1) > et) et = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        db.delete("ranges", "datatype = ? AND start <= ? AND end >= ?", selArgs);
+        ContentValues values = new ContentValues();
+        values.put("datatype", datatype);
+        values.put("start", st);
+        values.put("end", et);
+        db.insert("ranges", null, values);
+    }
+
+    /**
+     * Gets a cached aggregated result, as JSON string, or null if not found.
+     */
+    public synchronized String getAggregate(String key) {
+        Cursor c = getReadableDatabase().query("aggregates", new String[]{"json"},
+                "key = ?", new String[]{key}, null, null, null);
+        try {
+            if (c.moveToFirst()) return c.getString(0);
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    public synchronized void putAggregate(String key, String json) {
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("json", json);
+        getWritableDatabase().insertWithOnConflict("aggregates", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes everything from the cache.
+     */
+    public synchronized void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete("points", null, null);
+        db.delete("ranges", null, null);
+        db.delete("aggregates", null, null);
+    }
+}
@@ -2,31 +2,43 @@ package org.apache.cordova.health;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
-import android.content.IntentSender;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.Bundle;
+import android.util.Base64;
 import android.util.Log;
 
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
-import com.google.android.gms.common.Scopes;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
-import com.google.android.gms.common.api.Scope;
-import com.google.android.gms.common.api.Status;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.fitness.ConfigClient;
 import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.FitnessOptions;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.SensorsClient;
+import com.google.android.gms.fitness.SessionsClient;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.data.Session;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.request.DataTypeCreateRequest;
-import com.google.android.gms.fitness.result.DataReadResult;
-import com.google.android.gms.fitness.result.DataTypeResult;
+import com.google.android.gms.fitness.request.SensorRequest;
+import com.google.android.gms.fitness.request.SessionReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+import com.google.android.gms.fitness.result.SessionReadResponse;
+import com.google.android.gms.tasks.Continuation;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
@@ -37,13 +49,31 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Health plugin Android code.
@@ -57,8 +87,42 @@ public class HealthPlugin extends CordovaPlugin {
     private CordovaInterface cordova;
 
 
-    //actual Google API client
-    private GoogleApiClient mClient;
+    //delayed background tasks: write queue flushes
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    //actions run on a lane for reads and one for writes, so that slow writes never block reads
+    private static final int DEFAULT_READ_CONCURRENCY = 3;
+    private static final int DEFAULT_WRITE_CONCURRENCY = 1;
+    private static final int LANE_QUEUE_CAPACITY = 64;
+    private final ThreadPoolExecutor readExecutor = createLane("read", DEFAULT_READ_CONCURRENCY);
+    private final ThreadPoolExecutor writeExecutor = createLane("write", DEFAULT_WRITE_CONCURRENCY);
+
+    //Google Fit calls don't hold a lane thread: their results are processed here when they complete
+    //the queue is unbounded, as results can never be refused
+    private final ExecutorService resultExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), threadFactory("result"));
+    //number of Google Fit calls started and not yet completed
+    private final AtomicInteger fitCalls = new AtomicInteger();
+
+    //latency and payload statistics of the actions
+    private final ActionMetrics metrics = new ActionMetrics();
+
+    //identical queries in flight share the same read
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    //live subscriptions to the sensors, by id, whose samples are delivered in batches
+    private static final long DEFAULT_SAMPLING_RATE = 1000;
+    private static final long DEFAULT_DELIVERY_INTERVAL = 500;
+    private final Map<String, SensorSubscription> subscriptions = new ConcurrentHashMap<String, SensorSubscription>();
+    private final AtomicInteger subscriptionIds = new AtomicInteger();
+    private final ScheduledExecutorService deliveryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    //delta sync: data is read again this far back from the oldest high-water mark of the sync token,
+    //so that late data, and sources not seen before, are picked up
+    //the records already returned are recognised by their fingerprint, kept in the token while they can be read again
+    private static final long SYNC_LOOKBACK = 24 * 60 * 60 * 1000;
+    //sources silent for longer than this are forgotten, so that they don't widen every sync
+    private static final long SYNC_MAX_WINDOW = 30L * 24 * 60 * 60 * 1000;
 
     public static final int REQUEST_OAUTH = 1;
     public static final LinkedList<String> dynPerms = new LinkedList<String>();
@@ -85,6 +149,16 @@ public class HealthPlugin extends CordovaPlugin {
         bodydatatypes.put("fat_percentage", DataType.TYPE_BODY_FAT_PERCENTAGE);
     }
 
+    //Fit summaries (minimum, average and maximum) of the biometric data types, used in aggregated queries
+    public static Map<String, DataType> summarydatatypes = new HashMap<String, DataType>();
+
+    static {
+        summarydatatypes.put("height", DataType.AGGREGATE_HEIGHT_SUMMARY);
+        summarydatatypes.put("weight", DataType.AGGREGATE_WEIGHT_SUMMARY);
+        summarydatatypes.put("heart_rate", DataType.AGGREGATE_HEART_RATE_SUMMARY);
+        summarydatatypes.put("fat_percentage", DataType.AGGREGATE_BODY_FAT_PERCENTAGE_SUMMARY);
+    }
+
     //Scope for read/write access to location-related data types in Google Fit. These include location, distance, and speed.
     public static Map<String, DataType> locationdatatypes = new HashMap<String, DataType>();
 
@@ -99,7 +173,81 @@ public class HealthPlugin extends CordovaPlugin {
         //nutritiondatatypes.put("food", DataType.TYPE_NUTRITION);
     }
 
-    public static Map<String, DataType> customdatatypes = new HashMap<String, DataType>();
+    //custom data types, named after the package of the app, resolved once and then lazily on each start
+    private static final String[] CUSTOM_DATA_TYPES = {"gender", "date_of_birth"};
+    private static final String PREFS_NAME = "cordova-plugin-health";
+    private static final String PREF_CUSTOM_TYPES_RESOLVED = "customDataTypesResolved";
+    public static Map<String, DataType> customdatatypes = new ConcurrentHashMap<String, DataType>();
+
+    //codecs of all the supported data types, by name
+    //custom data types are added when resolved
+    public static Map<String, DataTypeCodec> codecs = new ConcurrentHashMap<String, DataTypeCodec>();
+
+    static {
+        codecs.put("steps", DataTypeCodec.intCodec(DataType.TYPE_STEP_COUNT_DELTA, Field.FIELD_STEPS, "count"));
+        codecs.put("distance", DataTypeCodec.floatCodec(DataType.TYPE_DISTANCE_DELTA, Field.FIELD_DISTANCE, "m"));
+        codecs.put("calories", DataTypeCodec.floatCodec(DataType.TYPE_CALORIES_EXPENDED, Field.FIELD_CALORIES, "kcal"));
+        codecs.put("calories.basal", DataTypeCodec.floatCodec(DataType.TYPE_BASAL_METABOLIC_RATE, Field.FIELD_CALORIES, "kcal"));
+        codecs.put("activity", DataTypeCodec.activityCodec());
+        codecs.put("height", DataTypeCodec.floatCodec(DataType.TYPE_HEIGHT, Field.FIELD_HEIGHT, "m"));
+        codecs.put("weight", DataTypeCodec.floatCodec(DataType.TYPE_WEIGHT, Field.FIELD_WEIGHT, "kg"));
+        codecs.put("heart_rate", DataTypeCodec.floatCodec(DataType.TYPE_HEART_RATE_BPM, Field.FIELD_BPM, "bpm"));
+        codecs.put("fat_percentage", DataTypeCodec.floatCodec(DataType.TYPE_BODY_FAT_PERCENTAGE, Field.FIELD_PERCENTAGE, "percent"));
+    }
+
+    //raw reads longer than the window of their data type are split into sub-ranges, read in parallel
+    //windows are sized on how dense the data type usually is, sparse data types are never split
+    private static final int SPLIT_PARALLELISM = 4;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    public static Map<String, Long> splitwindows = new HashMap<String, Long>();
+
+    static {
+        //sampled every few seconds by wearables
+        splitwindows.put("heart_rate", 2 * DAY);
+        //deltas, recorded every minute or so when active
+        splitwindows.put("steps", 14 * DAY);
+        splitwindows.put("distance", 14 * DAY);
+        splitwindows.put("calories", 14 * DAY);
+        //a few records per day
+        splitwindows.put("calories.basal", 90 * DAY);
+        splitwindows.put("activity", 90 * DAY);
+    }
+
+    //data more recent than this (in ms) may still change (e.g. synced late from a wearable) and is never cached
+    public static final long CACHE_HOT_WINDOW = 3 * 24 * 60 * 60 * 1000L;
+
+    //local cache of Fit data, created when first used
+    private HealthCache cache;
+
+    //points stored with the queue option are persisted first, and written to Fit in the background
+    //flushes are retried with exponential backoff
+    private static final long FLUSH_DELAY = 1000;
+    private static final long FLUSH_MAX_DELAY = 5 * 60 * 1000;
+    private static final int FLUSH_BATCH = 1000;
+    private static final long FLUSH_TIMEOUT = 60 * 1000;
+    //points still refused after this many attempts (about 8 hours at the maximum delay) are dropped as rejected
+    private static final int FLUSH_MAX_ATTEMPTS = 100;
+    private WriteQueue writeQueue;
+    //the queue has its own thread, so that a flush waiting for Fit never holds the write lane
+    //the queue is unbounded, as queued points can never be refused
+    private final ThreadPoolExecutor queueExecutor = createQueueExecutor();
+    private final Object flushLock = new Object();
+    private boolean flushing = false;
+    //number of points of the batch being written
+    private int flushingPoints = 0;
+    private final List<CallbackContext> flushWaiters = new ArrayList<CallbackContext>();
+    private boolean flushScheduled = false;
+    private long nextFlush = 0;
+    private int flushFailures = 0;
+    private String lastFlushError = null;
+    private long lastFlush = 0;
+    private long rejectedWrites = 0;
+
+    //the basal metabolic rate is averaged over this window (a week) before the end of the query
+    private static final long BASAL_WINDOW = 7 * 24 * 60 * 60 * 1000L;
+
+    //daily averages of the basal metabolic rate, by day of the end of the query
+    private final Map<String, Float> basalDailyAverages = new ConcurrentHashMap<String, Float>();
 
     boolean bodyscope = false;
     boolean activityscope = false;
@@ -113,45 +261,72 @@ public class HealthPlugin extends CordovaPlugin {
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
         this.cordova = cordova;
+        //points queued before the app was closed
+        queueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (WriteQueue.exists(cordova.getActivity().getApplicationContext())) scheduleFlush(FLUSH_DELAY);
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        scheduler.shutdownNow();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+        queueExecutor.shutdownNow();
+        resultExecutor.shutdownNow();
+        deliveryExecutor.shutdownNow();
+        metrics.shutdown();
+        stopSubscriptions();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onReset() {
+        //the page that subscribed is gone (reload or navigation)
+        stopSubscriptions();
+        super.onReset();
+    }
+
+    /**
+     * Stops all the subscriptions, without delivering their last samples.
+     * Listeners registered with the sensors client outlive the plugin and the page, unless removed.
+     */
+    private void stopSubscriptions() {
+        if (subscriptions.isEmpty()) return;
+        SensorsClient sensors = getSensorsClient();
+        Iterator<SensorSubscription> it = subscriptions.values().iterator();
+        while (it.hasNext()) {
+            SensorSubscription subscription = it.next();
+            it.remove();
+            // listeners still being added are removed once added
+            if (subscription.stop(false)) sensors.remove(subscription);
+        }
     }
 
     private CallbackContext authReqCallbackCtx;
 
     private void authReqSuccess() {
-        //Create custom data types
-        cordova.getThreadPool().execute(new Runnable() {
+        //custom data types already exist: they are resolved lazily when first used, see getCodec()
+        if (getPreferences().getBoolean(PREF_CUSTOM_TYPES_RESOLVED, false)) {
+            requestDynamicPermissions();
+            return;
+        }
+        //first authorization, resolve or create the custom data types
+        submit(writeExecutor, authReqCallbackCtx, new Runnable() {
 
             @Override
             public void run() {
                 try {
-                    String packageName = cordova.getActivity().getApplicationContext().getPackageName();
-                    DataTypeCreateRequest request = new DataTypeCreateRequest.Builder()
-                            .setName(packageName + ".gender")
-                            .addField("gender", Field.FORMAT_STRING)
-                            .build();
-                    PendingResult<DataTypeResult> pendingResult = Fitness.ConfigApi.createCustomDataType(mClient, request);
-                    DataTypeResult dataTypeResult = pendingResult.await();
-                    if (!dataTypeResult.getStatus().isSuccess()) {
-                        authReqCallbackCtx.error(dataTypeResult.getStatus().getStatusMessage());
+                    String error = resolveCustomDataTypes(CUSTOM_DATA_TYPES);
+                    if (error != null) {
+                        authReqCallbackCtx.error(error);
                         return;
                     }
-                    customdatatypes.put("gender", dataTypeResult.getDataType());
-
-                    request = new DataTypeCreateRequest.Builder()
-                            .setName(packageName + ".date_of_birth")
-                            .addField("day", Field.FORMAT_INT32)
-                            .addField("month", Field.FORMAT_INT32)
-                            .addField("year", Field.FORMAT_INT32)
-                            .build();
-                    pendingResult = Fitness.ConfigApi.createCustomDataType(mClient, request);
-                    dataTypeResult = pendingResult.await();
-                    if (!dataTypeResult.getStatus().isSuccess()) {
-                        authReqCallbackCtx.error(dataTypeResult.getStatus().getStatusMessage());
-                        return;
-                    }
-                    customdatatypes.put("date_of_birth", dataTypeResult.getDataType());
-
-                    Log.i(TAG, "All custom data types created");
+                    getPreferences().edit().putBoolean(PREF_CUSTOM_TYPES_RESOLVED, true).apply();
+                    Log.i(TAG, "All custom data types resolved");
                     requestDynamicPermissions();
                 } catch (Exception ex) {
                     authReqCallbackCtx.error(ex.getMessage());
@@ -160,6 +335,95 @@ public class HealthPlugin extends CordovaPlugin {
         });
     }
 
+    private SharedPreferences getPreferences() {
+        return cordova.getActivity().getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static boolean isCustomDataType(String datatype) {
+        for (String custom : CUSTOM_DATA_TYPES) {
+            if (custom.equals(datatype)) return true;
+        }
+        return false;
+    }
+
+    // definition of the custom data types, named after the package of the app
+    private DataTypeCreateRequest customDataTypeRequest(String datatype) {
+        String packageName = cordova.getActivity().getApplicationContext().getPackageName();
+        DataTypeCreateRequest.Builder builder = new DataTypeCreateRequest.Builder()
+                .setName(packageName + "." + datatype);
+        if (datatype.equals("gender")) {
+            builder.addField("gender", Field.FORMAT_STRING);
+        } else {
+            builder.addField("day", Field.FORMAT_INT32)
+                    .addField("month", Field.FORMAT_INT32)
+                    .addField("year", Field.FORMAT_INT32);
+        }
+        return builder.build();
+    }
+
+    private static void putCustomDataType(String datatype, DataType dt) {
+        customdatatypes.put(datatype, dt);
+        if (datatype.equals("gender")) codecs.put(datatype, DataTypeCodec.genderCodec(dt));
+        else codecs.put(datatype, DataTypeCodec.dateOfBirthCodec(dt));
+    }
+
+    /**
+     * Resolves the given custom data types, skipping those already resolved.
+     * All the lookups are issued before waiting for any of them, and the data types are created only if missing.
+     * Blocks until done, it is only needed once per data type: must be called on a lane.
+     * @return an error message, null if all the data types have been resolved
+     */
+    private String resolveCustomDataTypes(String... datatypes) {
+        String packageName = cordova.getActivity().getApplicationContext().getPackageName();
+        ConfigClient config = getConfigClient();
+        Map<String, Task<DataType>> reads = new LinkedHashMap<String, Task<DataType>>();
+        for (String datatype : datatypes) {
+            if (codecs.containsKey(datatype)) continue;
+            reads.put(datatype, config.readDataType(packageName + "." + datatype));
+        }
+
+        Map<String, Task<DataType>> creates = new LinkedHashMap<String, Task<DataType>>();
+        for (Map.Entry<String, Task<DataType>> read : reads.entrySet()) {
+            DataType dt = null;
+            try {
+                dt = await(read.getValue());
+            } catch (Exception ex) {
+                // not found, or not readable
+            }
+            if (dt != null) {
+                putCustomDataType(read.getKey(), dt);
+            } else {
+                Log.d(TAG, "Custom data type " + read.getKey() + " not found, creating it");
+                creates.put(read.getKey(), config.createCustomDataType(customDataTypeRequest(read.getKey())));
+            }
+        }
+
+        String error = null;
+        for (Map.Entry<String, Task<DataType>> create : creates.entrySet()) {
+            try {
+                putCustomDataType(create.getKey(), await(create.getValue()));
+            } catch (Exception ex) {
+                if (error == null) error = errorMessage(ex);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Gets the codec of a data type, resolving custom data types on first use.
+     * Must be called on a lane.
+     * @return null if the data type is not supported or cannot be resolved
+     */
+    private DataTypeCodec getCodec(String datatype) {
+        DataTypeCodec codec = codecs.get(datatype);
+        if ((codec == null) && isCustomDataType(datatype)) {
+            String error = resolveCustomDataTypes(datatype);
+            if (error != null) Log.e(TAG, "Cannot resolve custom data type " + datatype + ": " + error);
+            codec = codecs.get(datatype);
+        }
+        return codec;
+    }
+
     public void requestDynamicPermissions() {
         if (dynPerms.isEmpty()) {
             authReqCallbackCtx.success();
@@ -199,12 +463,7 @@ public class HealthPlugin extends CordovaPlugin {
         if (requestCode == REQUEST_OAUTH) {
             if (resultCode == Activity.RESULT_OK) {
                 Log.i(TAG, "Got authorisation from Google Fit");
-                auth(authReqCallbackCtx);
-//                if (!mClient.isConnected() && !mClient.isConnecting()) {
-//                    Log.d(TAG, "Re-trying connection with Fit");
-//                    mClient.connect();
-//                }
-                //authReqCallbackCtx.success();
+                authReqSuccess();
             } else if (resultCode == Activity.RESULT_CANCELED) {
                 // The user cancelled the login dialog before selecting any action.
                 authReqCallbackCtx.error("User cancelled the dialog");
@@ -219,12 +478,15 @@ public class HealthPlugin extends CordovaPlugin {
      *
      * @param action          The action to execute.
      * @param args            The exec() arguments.
-     * @param callbackContext The callback context used when calling back into JavaScript.
+     * @param jsCallbackContext The callback context used when calling back into JavaScript.
      * @return
      * @throws JSONException
      */
     @Override
-    public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    public boolean execute(String action, final JSONArray args, CallbackContext jsCallbackContext) throws JSONException {
+        //all the requests are measured, except subscriptions that stay open
+        final CallbackContext callbackContext = ("subscribe".equals(action) || "getMetrics".equals(action))
+                ? jsCallbackContext : metrics.trace(action, jsCallbackContext, webView);
 
         if ("isAvailable".equals(action)) {
             isAvailable(callbackContext);
@@ -233,11 +495,25 @@ public class HealthPlugin extends CordovaPlugin {
             requestAuthorization(args, callbackContext);
             return true;
         } else if ("query".equals(action)) {
-            cordova.getThreadPool().execute(new Runnable() {
+            final CallbackContext flight = coalescer.join(action, args.getJSONObject(0), callbackContext, webView);
+            if (flight == null) return true;
+            submit(readExecutor, flight, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        query(args, flight);
+                    } catch (Exception ex) {
+                        flight.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("queryBatch".equals(action)) {
+            submit(readExecutor, callbackContext, new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        query(args, callbackContext);
+                        queryBatch(args, callbackContext);
                     } catch (Exception ex) {
                         callbackContext.error(ex.getMessage());
                     }
@@ -245,25 +521,223 @@ public class HealthPlugin extends CordovaPlugin {
             });
             return true;
         } else if ("queryAggregated".equals(action)) {
-            cordova.getThreadPool().execute(new Runnable() {
+            final CallbackContext flight = coalescer.join(action, args.getJSONObject(0), callbackContext, webView);
+            if (flight == null) return true;
+            submit(readExecutor, flight, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queryAggregated(args, flight);
+                    } catch (Exception ex) {
+                        flight.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("querySessions".equals(action)) {
+            submit(readExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        querySessions(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("clearCache".equals(action)) {
+            submit(writeExecutor, callbackContext, new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        queryAggregated(args, callbackContext);
+                        getCache().clear();
+                        callbackContext.success();
                     } catch (Exception ex) {
                         callbackContext.error(ex.getMessage());
                     }
                 }
             });
             return true;
+        } else if ("store".equals(action) && args.getJSONObject(0).optBoolean("queue", false)) {
+            enqueue(args, callbackContext);
+            return true;
         } else if ("store".equals(action)) {
-            store(args, callbackContext);
+            submit(writeExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        store(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("storeBatch".equals(action)) {
+            submit(writeExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        storeBatch(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("sync".equals(action)) {
+            submit(readExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("subscribe".equals(action)) {
+            submit(readExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        subscribe(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("unsubscribe".equals(action)) {
+            submit(readExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        unsubscribe(args, callbackContext);
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("getWriteQueueStatus".equals(action)) {
+            submit(queueExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callbackContext.success(writeQueueStatus());
+                    } catch (Exception ex) {
+                        callbackContext.error(ex.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if ("flushWriteQueue".equals(action)) {
+            submit(queueExecutor, callbackContext, new Runnable() {
+                @Override
+                public void run() {
+                    // answered with the status of the queue when the flush ends
+                    startFlush(callbackContext);
+                }
+            });
+            return true;
+        } else if ("getQueueStatus".equals(action)) {
+            JSONObject status = new JSONObject();
+            status.put("read", laneStatus(readExecutor));
+            status.put("write", laneStatus(writeExecutor));
+            status.put("fitCalls", fitCalls.get());
+            callbackContext.success(status);
+            return true;
+        } else if ("getMetrics".equals(action)) {
+            JSONObject opts = args.optJSONObject(0);
+            if ((opts != null) && opts.has("logInterval")) metrics.setLogInterval(opts.getLong("logInterval"));
+            JSONObject result = metrics.toJSON();
+            if ((opts != null) && opts.optBoolean("reset", false)) metrics.reset();
+            callbackContext.success(result);
+            return true;
+        } else if ("setConcurrency".equals(action)) {
+            JSONObject opts = args.getJSONObject(0);
+            if (opts.has("read")) setLaneConcurrency(readExecutor, opts.getInt("read"));
+            if (opts.has("write")) setLaneConcurrency(writeExecutor, opts.getInt("write"));
+            callbackContext.success();
             return true;
         }
 
         return false;
     }
 
+    /**
+     * Runs a task on one of the lanes, if the lane is full the task is refused and an error is returned.
+     *
+     * @param callbackContext where to send the error if the task is refused, can be null
+     */
+    private void submit(ThreadPoolExecutor lane, final CallbackContext callbackContext, final Runnable task) {
+        try {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ActionMetrics.begin(RequestCoalescer.leader(callbackContext));
+                    try {
+                        task.run();
+                    } finally {
+                        ActionMetrics.end();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Request refused, too many pending requests");
+            if (callbackContext != null) callbackContext.error("Too many pending requests");
+        }
+    }
+
+    private static ThreadPoolExecutor createLane(String name, int threads) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(LANE_QUEUE_CAPACITY), threadFactory(name));
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+
+    private static ThreadPoolExecutor createQueueExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory("queue"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, TAG + "-" + name + "-" + (count++));
+            }
+        };
+    }
+
+    private static void setLaneConcurrency(ThreadPoolExecutor lane, int threads) {
+        if (threads < 1) threads = 1;
+        // max cannot be lower than core, so the order matters
+        if (threads > lane.getMaximumPoolSize()) {
+            lane.setMaximumPoolSize(threads);
+            lane.setCorePoolSize(threads);
+        } else {
+            lane.setCorePoolSize(threads);
+            lane.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static JSONObject laneStatus(ThreadPoolExecutor lane) throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("concurrency", lane.getMaximumPoolSize());
+        status.put("active", lane.getActiveCount());
+        status.put("queued", lane.getQueue().size());
+        status.put("capacity", LANE_QUEUE_CAPACITY);
+        return status;
+    }
+
 
     private void isAvailable(final CallbackContext callbackContext) {
         //first check that the Google APIs are available
@@ -338,86 +812,187 @@ public class HealthPlugin extends CordovaPlugin {
         // peckinc, crashs my 5.0.1 phone so lets clear these
         dynPerms.clear();
 
-        auth(callbackContext);
+        FitnessOptions options = fitnessOptions(bodyscope, activityscope, locationscope, nutritionscope);
+        GoogleSignInAccount account = GoogleSignIn.getAccountForExtension(cordova.getActivity(), options);
+        if (GoogleSignIn.hasPermissions(account, options)) {
+            Log.i(TAG, "Google Fit already authorised");
+            authReqSuccess();
+        } else {
+            // the result is received in onActivityResult()
+            GoogleSignIn.requestPermissions(cordova.getActivity(), REQUEST_OAUTH, account, options);
+        }
+    }
+
+    /**
+     * Read and write access to all the data types of the given groups.
+     */
+    private static FitnessOptions fitnessOptions(boolean body, boolean activity, boolean location, boolean nutrition) {
+        FitnessOptions.Builder builder = FitnessOptions.builder();
+        if (body) addDataTypes(builder, bodydatatypes);
+        if (activity) addDataTypes(builder, activitydatatypes);
+        if (location) addDataTypes(builder, locationdatatypes);
+        if (nutrition) addDataTypes(builder, nutritiondatatypes);
+        return builder.build();
+    }
+
+    private static void addDataTypes(FitnessOptions.Builder builder, Map<String, DataType> datatypes) {
+        for (DataType dt : datatypes.values()) {
+            builder.addDataType(dt, FitnessOptions.ACCESS_READ);
+            builder.addDataType(dt, FitnessOptions.ACCESS_WRITE);
+        }
+    }
+
+    /**
+     * The account the Fit clients act on behalf of.
+     * Clients are cheap and connect by themselves, if the account has not been authorised their calls fail.
+     */
+    private GoogleSignInAccount getAccount() {
+        return GoogleSignIn.getAccountForExtension(cordova.getActivity().getApplicationContext(),
+                fitnessOptions(true, true, true, true));
+    }
+
+    private HistoryClient getHistoryClient() {
+        return Fitness.getHistoryClient(cordova.getActivity().getApplicationContext(), getAccount());
+    }
+
+    private ConfigClient getConfigClient() {
+        return Fitness.getConfigClient(cordova.getActivity().getApplicationContext(), getAccount());
+    }
 
+    private SessionsClient getSessionsClient() {
+        return Fitness.getSessionsClient(cordova.getActivity().getApplicationContext(), getAccount());
+    }
 
+    private SensorsClient getSensorsClient() {
+        return Fitness.getSensorsClient(cordova.getActivity().getApplicationContext(), getAccount());
     }
 
-    private void auth(final CallbackContext callbackContext) {
-        GoogleApiClient.Builder builder = new GoogleApiClient.Builder(this.cordova.getActivity());
-        builder.addApi(Fitness.HISTORY_API);
-        builder.addApi(Fitness.CONFIG_API);
-        builder.addApi(Fitness.SESSIONS_API);
-        //scopes: https://developers.google.com/android/reference/com/google/android/gms/common/Scopes.html
-        if (bodyscope) builder.addScope(new Scope(Scopes.FITNESS_BODY_READ_WRITE));
-        if (activityscope) builder.addScope(new Scope(Scopes.FITNESS_ACTIVITY_READ_WRITE));
-        if (locationscope) builder.addScope(new Scope(Scopes.FITNESS_LOCATION_READ_WRITE));
-        if (nutritionscope) builder.addScope(new Scope(Scopes.FITNESS_NUTRITION_READ_WRITE));
+    /**
+     * Continuation of an action, run when its Google Fit call succeeds.
+     */
+    private interface FitCallback<T> {
+        void onResult(T result) throws JSONException;
+    }
 
-        builder.addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+    /**
+     * Continues an action when a Google Fit call completes, without holding any thread while waiting.
+     * The callback runs on the result executor, within the metrics of the action;
+     * if the call fails, or the callback throws, the error is sent to the callback context.
+     */
+    private <T> void then(Task<T> task, final CallbackContext callbackContext, final FitCallback<T> callback) {
+        final long t0 = System.nanoTime();
+        fitCalls.incrementAndGet();
+        task.addOnCompleteListener(resultExecutor, new OnCompleteListener<T>() {
             @Override
-            public void onConnected(Bundle bundle) {
-                mClient.unregisterConnectionCallbacks(this);
-                Log.i(TAG, "Google Fit connected");
-                authReqSuccess();
+            public void onComplete(Task<T> done) {
+                fitCalls.decrementAndGet();
+                ActionMetrics.resume(RequestCoalescer.leader(callbackContext));
+                ActionMetrics.addFit(System.nanoTime() - t0);
+                try {
+                    if (!done.isSuccessful()) {
+                        callbackContext.error(errorMessage(done.getException()));
+                        return;
+                    }
+                    T result = done.getResult();
+                    countPoints(result);
+                    callback.onResult(result);
+                } catch (Exception ex) {
+                    callbackContext.error(errorMessage(ex));
+                } finally {
+                    ActionMetrics.end();
+                }
             }
+        });
+    }
 
+    /**
+     * Counts a Google Fit call among those in flight, until it completes.
+     */
+    private <T> Task<T> track(Task<T> task) {
+        fitCalls.incrementAndGet();
+        task.addOnCompleteListener(resultExecutor, new OnCompleteListener<T>() {
             @Override
-            public void onConnectionSuspended(int i) {
-                String message = "";
-                if (i == GoogleApiClient.ConnectionCallbacks.CAUSE_NETWORK_LOST) {
-                    message = "connection lost, network lost";
-                } else if (i == GoogleApiClient.ConnectionCallbacks.CAUSE_SERVICE_DISCONNECTED) {
-                    message = "connection lost, service disconnected";
-                } else message = "connection lost, code: " + i;
-                Log.e(TAG, message);
-                callbackContext.error(message);
+            public void onComplete(Task<T> done) {
+                fitCalls.decrementAndGet();
             }
         });
-
-        builder.addOnConnectionFailedListener(
-                new GoogleApiClient.OnConnectionFailedListener() {
-                    @Override
-                    public void onConnectionFailed(ConnectionResult result) {
-                        Log.i(TAG, "Connection failed, cause: " + result.toString());
-                        if (!result.hasResolution()) {
-                            Log.e(TAG, "Connection failure has no resolution: " + result.getErrorMessage());
-                            callbackContext.error(result.getErrorMessage());
-                        } else {
-                            // The failure has a resolution. Resolve it.
-                            // Called typically when the app is not yet authorized, and an
-                            // authorization dialog is displayed to the user.
-                            try {
-                                Log.i(TAG, "Attempting to resolve failed connection");
-                                result.startResolutionForResult(cordova.getActivity(), REQUEST_OAUTH);
-                            } catch (IntentSender.SendIntentException e) {
-                                Log.e(TAG, "Exception while starting resolution activity", e);
-                                callbackContext.error(result.getErrorMessage());
-                            }
-                        }
-                    }
-                }
-        );
-        mClient = builder.build();
-        mClient.connect();
+        return task;
     }
 
-    private boolean lightConnect() {
-        this.cordova.setActivityResultCallback(this);
+    /**
+     * Waits for the result of a Google Fit call, adding the time spent and the points read to the metrics of the action.
+     * Only for work that has to be sequential (custom data types), never on the main thread.
+     */
+    private <T> T await(Task<T> task) throws Exception {
+        long t0 = System.nanoTime();
+        fitCalls.incrementAndGet();
+        try {
+            T result = Tasks.await(task);
+            countPoints(result);
+            return result;
+        } catch (ExecutionException ex) {
+            // the failure of the call itself
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        } finally {
+            fitCalls.decrementAndGet();
+            ActionMetrics.addFit(System.nanoTime() - t0);
+        }
+    }
 
-        GoogleApiClient.Builder builder = new GoogleApiClient.Builder(this.cordova.getActivity().getApplicationContext());
-        builder.addApi(Fitness.HISTORY_API);
-        builder.addApi(Fitness.CONFIG_API);
-        builder.addApi(Fitness.SESSIONS_API);
+    private static String errorMessage(Exception ex) {
+        // combined tasks wrap the failure of the first call that failed
+        Throwable cause = ex;
+        while ((cause instanceof ExecutionException) && (cause.getCause() != null)) cause = cause.getCause();
+        return (cause == null) ? "Unknown error" : cause.getMessage();
+    }
 
-        mClient = builder.build();
-        mClient.blockingConnect();
-        if (mClient.isConnected()) {
-            Log.i(TAG, "Google Fit connected (light)");
-            return true;
-        } else {
-            return false;
+    private static void countPoints(Object result) {
+        if (!(result instanceof DataReadResponse)) return;
+        long points = 0;
+        for (DataSet dataset : ((DataReadResponse) result).getDataSets()) {
+            points += dataset.getDataPoints().size();
         }
+        for (Bucket bucket : ((DataReadResponse) result).getBuckets()) {
+            for (DataSet dataset : bucket.getDataSets()) {
+                points += dataset.getDataPoints().size();
+            }
+        }
+        ActionMetrics.addPoints(points);
+    }
+
+    /**
+     * Sends a page of results of a query.
+     *
+     * @param more   if true, more chunks of the same page will follow and the callback is kept
+     * @param cursor cursor to be used for querying the next page, null if there are no more pages
+     */
+    private static void sendPage(CallbackContext callbackContext, JSONArray data, boolean more, String cursor) throws JSONException {
+        sendPage(callbackContext, data, more, cursor, null);
+    }
+
+    private static void sendPage(CallbackContext callbackContext, JSONArray data, boolean more, String cursor, JSONObject empty) throws JSONException {
+        JSONObject page = new JSONObject();
+        page.put("data", data);
+        page.put("more", more);
+        if (cursor != null) page.put("cursor", cursor);
+        if (empty != null) page.put("empty", empty);
+        long t0 = System.nanoTime();
+        PluginResult result = new PluginResult(PluginResult.Status.OK, page);
+        ActionMetrics.addSerialize(System.nanoTime() - t0);
+        result.setKeepCallback(more);
+        callbackContext.sendPluginResult(result);
+    }
+
+    /**
+     * Describes a query that found no data: time range, data type and data sources that were read.
+     */
+    private static JSONObject emptyMetadata(String datatype, long st, long et, Collection<JSONObject> sources) throws JSONException {
+        JSONObject empty = new JSONObject();
+        empty.put("startDate", st);
+        empty.put("endDate", et);
+        empty.put("dataType", datatype);
+        empty.put("sources", new JSONArray(sources));
+        return empty;
     }
 
     private void query(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
@@ -436,324 +1011,1319 @@ public class HealthPlugin extends CordovaPlugin {
             return;
         }
         String datatype = args.getJSONObject(0).getString("dataType");
-        DataType dt = null;
-
-        if (bodydatatypes.get(datatype) != null)
-            dt = bodydatatypes.get(datatype);
-        if (activitydatatypes.get(datatype) != null)
-            dt = activitydatatypes.get(datatype);
-        if (locationdatatypes.get(datatype) != null)
-            dt = locationdatatypes.get(datatype);
-        if (nutritiondatatypes.get(datatype) != null)
-            dt = nutritiondatatypes.get(datatype);
-        if (customdatatypes.get(datatype) != null)
-            dt = customdatatypes.get(datatype);
-        if (dt == null) {
+        //active calories are computed as total calories minus basal calories
+        boolean active = datatype.equals("calories.active");
+        if (active) datatype = "calories";
+        DataTypeCodec codec = getCodec(datatype);
+        if (codec == null) {
             callbackContext.error("Datatype " + datatype + " not supported");
             return;
         }
-        final DataType DT = dt;
 
-        if ((mClient == null) || (!mClient.isConnected())) {
-            if (!lightConnect()) {
-                callbackContext.error("Cannot connect to Google Fit");
+        // results can be streamed in chunks and/or paged with a cursor
+        int chunkSize = args.getJSONObject(0).optInt("chunkSize", 0);
+        int limit = args.getJSONObject(0).optInt("limit", 0);
+        boolean paged = (chunkSize > 0) || (limit > 0);
+        // the cursor is made of the start time of the last returned point
+        // and of how many points with that same start time have been returned already
+        long cursorTime = Long.MIN_VALUE;
+        int cursorSkip = 0;
+        if (args.getJSONObject(0).has("cursor") && !args.getJSONObject(0).isNull("cursor")) {
+            String cursor = args.getJSONObject(0).getString("cursor");
+            try {
+                int sep = cursor.indexOf(':');
+                cursorTime = Long.parseLong(cursor.substring(0, sep));
+                cursorSkip = Integer.parseInt(cursor.substring(sep + 1));
+            } catch (Exception ex) {
+                callbackContext.error("Invalid cursor " + cursor);
                 return;
             }
+            if (cursorTime > st) st = cursorTime;
+        }
+        boolean useCache = args.getJSONObject(0).optBoolean("cache", false);
+        if (useCache && paged) {
+            callbackContext.error("cache cannot be used together with chunkSize or limit");
+            return;
+        }
+        // results can be returned as columns, in JSON or in binary form
+        String format = args.getJSONObject(0).optString("format", "");
+        if (format.length() > 0) {
+            if (!format.equals("columnar") && !format.equals("binary")) {
+                callbackContext.error("Format " + format + " not supported");
+                return;
+            }
+            if (paged || useCache) {
+                callbackContext.error("format cannot be used together with chunkSize, limit or cache");
+                return;
+            }
+            if (format.equals("binary") && !codec.isNumeric()) {
+                callbackContext.error("Binary format not supported for datatype " + datatype);
+                return;
+            }
+        }
+        if (active && (format.length() > 0)) {
+            callbackContext.error("format is not supported for calories.active");
+            return;
+        }
+        // numeric results can be downsampled while they are read, to a number of points or to buckets of a given length
+        int maxPoints = args.getJSONObject(0).optInt("maxPoints", 0);
+        long resolution = args.getJSONObject(0).optLong("resolution", 0);
+        if ((maxPoints > 0) || (resolution > 0)) {
+            String downsample = args.getJSONObject(0).optString("downsample", Downsampler.LTTB);
+            if (!Downsampler.isMode(downsample)) {
+                callbackContext.error("downsample " + downsample + " not supported");
+                return;
+            }
+            if ((maxPoints > 0) && (resolution > 0)) {
+                callbackContext.error("maxPoints and resolution cannot be used together");
+                return;
+            }
+            if ((maxPoints > 0) && (maxPoints < 2)) {
+                callbackContext.error("maxPoints must be at least 2");
+                return;
+            }
+            if ((resolution > 0) && (Downsampler.bucketCount(st, et, resolution) > Downsampler.MAX_BUCKETS)) {
+                callbackContext.error("resolution is too small for the time range, at most " + Downsampler.MAX_BUCKETS + " buckets are allowed");
+                return;
+            }
+            if (paged || useCache || (format.length() > 0)) {
+                callbackContext.error("maxPoints and resolution cannot be used together with chunkSize, limit, cache or format");
+                return;
+            }
+            if (!codec.isNumeric()) {
+                callbackContext.error("Downsampling not supported for datatype " + datatype);
+                return;
+            }
+            if (active) {
+                callbackContext.error("maxPoints and resolution are not supported for calories.active");
+                return;
+            }
+        }
+        // when no data is found, either an empty array or a description of what was queried is returned
+        String emptyResult = args.getJSONObject(0).optString("emptyResult", "array");
+        if (!emptyResult.equals("array") && !emptyResult.equals("metadata")) {
+            callbackContext.error("emptyResult " + emptyResult + " not supported");
+            return;
+        }
+        // results can be restricted to some sources, and overlapping points from different sources removed
+        SourceFilter sourceFilter = SourceFilter.fromOptions(args.getJSONObject(0));
+        if ((sourceFilter != null) && useCache) {
+            callbackContext.error("sources, excludeSources and dedup cannot be used together with cache");
+            return;
         }
 
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .setTimeRange(st, et, TimeUnit.MILLISECONDS)
-                .read(dt)
-                .build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(mClient, readRequest).await();
-
-        if (dataReadResult.getStatus().isSuccess()) {
-            JSONArray resultset = new JSONArray();
-            List<DataSet> datasets = dataReadResult.getDataSets();
-            for (DataSet dataset : datasets) {
-
-                if (dataset.getDataPoints().isEmpty()) {
+        final String fdatatype = datatype;
+        final DataTypeCodec fcodec = codec;
+        final long fst = st;
+        final long fet = et;
+        final long fcursorTime = cursorTime;
+        final int fcursorSkip = cursorSkip;
+        final boolean factive = active;
+        final boolean fuseCache = useCache;
+        final SourceFilter fsourceFilter = sourceFilter;
+        FitCallback<Float> read = new FitCallback<Float>() {
+            @Override
+            public void onResult(Float basalAvg) throws JSONException {
+                if (fuseCache) {
+                    boolean refresh = args.getJSONObject(0).optBoolean("refresh", false);
+                    queryCached(fdatatype, fcodec, fst, fet, refresh, factive, basalAvg, callbackContext);
+                    return;
+                }
 
-                    try {
-                        DataSource ds = new DataSource.Builder()
-                                .setAppPackageName("me.peck.PeckApp")
-                                .setDataType(DataType.TYPE_DISTANCE_DELTA)
-                                .setName("peck-starting-sample")
-                                .setType(DataSource.TYPE_RAW)
-                                .build();
+                final QueryWriter writer = new QueryWriter(args.getJSONObject(0), fcodec, fst, fet, fcursorTime, fcursorSkip,
+                        factive, basalAvg, callbackContext);
+                Long window = splitwindows.get(fdatatype);
+                boolean split = args.getJSONObject(0).optBoolean("split", true) && (window != null) && (fet - fst > window)
+                        && ((fsourceFilter == null) || !fsourceFilter.isDedup());
+                if (split) {
+                    readSplit(fcodec.getDataType(), fst, fet, window, fsourceFilter, writer, callbackContext);
+                    return;
+                }
+
+                DataReadRequest readRequest = new DataReadRequest.Builder()
+                        .setTimeRange(fst, fet, TimeUnit.MILLISECONDS)
+                        .read(fcodec.getDataType())
+                        .build();
+                then(getHistoryClient().readData(readRequest), callbackContext, new FitCallback<DataReadResponse>() {
+                    @Override
+                    public void onResult(DataReadResponse response) throws JSONException {
+                        if (fsourceFilter != null) {
+                            writer.add(fsourceFilter.apply(response.getDataSets()), response.getDataSets());
+                        } else {
+                            // points are passed straight from each data set, without copying them
+                            for (DataSet dataset : response.getDataSets()) {
+                                if (!writer.add(dataset.getDataPoints(), Collections.singletonList(dataset))) break;
+                            }
+                        }
+                        writer.finish();
+                    }
+                });
+            }
+        };
+        if (active) {
+            then(getBasalDailyAverage(et), callbackContext, read);
+        } else {
+            read.onResult(0f);
+        }
+    }
+
+    /**
+     * Reads a long time range as consecutive sub-ranges, at most SPLIT_PARALLELISM at a time,
+     * and writes their points in time order, stopping early when the limit of the query is reached.
+     */
+    private void readSplit(final DataType dt, long st, long et, long window, SourceFilter sourceFilter,
+                           final QueryWriter writer, final CallbackContext callbackContext) {
+        final CallbackContext leader = RequestCoalescer.leader(callbackContext);
+        final long t0 = System.nanoTime();
+        SplitRead.Reader reader = new SplitRead.Reader() {
+            @Override
+            public Task<DataReadResponse> read(long st, long et) {
+                DataReadRequest readRequest = new DataReadRequest.Builder()
+                        .setTimeRange(st, et, TimeUnit.MILLISECONDS)
+                        .read(dt)
+                        .build();
+                return track(getHistoryClient().readData(readRequest));
+            }
+        };
+        SplitRead.Listener listener = new SplitRead.Listener() {
+            @Override
+            public boolean onRange(List<DataPoint> points, DataReadResponse response) throws Exception {
+                ActionMetrics.resume(leader);
+                try {
+                    countPoints(response);
+                    return writer.add(points, response.getDataSets());
+                } finally {
+                    ActionMetrics.end();
+                }
+            }
+
+            @Override
+            public void onEnd(Exception error) {
+                ActionMetrics.resume(leader);
+                // reads overlap with each other and with decoding, the wait is the whole read
+                ActionMetrics.addFit(System.nanoTime() - t0);
+                try {
+                    if (error != null) callbackContext.error(errorMessage(error));
+                    else writer.finish();
+                } catch (Exception ex) {
+                    callbackContext.error(errorMessage(ex));
+                } finally {
+                    ActionMetrics.end();
+                }
+            }
+        };
+        new SplitRead(st, et, window, SPLIT_PARALLELISM, sourceFilter, reader, resultExecutor, listener).start();
+    }
+
+    /**
+     * Writes the points read by a raw query, in the format, pages and chunks given in the options of the query.
+     * Points are added in time order, in one or more steps, and the result is completed by finish().
+     */
+    private static class QueryWriter {
+        private final JSONObject opts;
+        private final DataTypeCodec codec;
+        private final long st;
+        private final long et;
+        private final long cursorTime;
+        private final boolean active;
+        private final float basalAvg;
+        private final CallbackContext callbackContext;
+        private final int chunkSize;
+        private final int limit;
+        private final boolean paged;
+        private final String format;
+        private final boolean emptyMetadata;
+        private final ColumnarResult columns;
+        private final Downsampler downsampler;
+        // only the sources are kept for the metadata, never the data sets and their points
+        private final Map<String, JSONObject> sources = new LinkedHashMap<String, JSONObject>();
+        private JSONArray resultset = new JSONArray();
+        private int returned = 0;
+        private int toSkip;
+        private long lastTime;
+        private int lastSkip;
+        private boolean more = false;
+
+        QueryWriter(JSONObject opts, DataTypeCodec codec, long st, long et, long cursorTime, int cursorSkip,
+                    boolean active, float basalAvg, CallbackContext callbackContext) {
+            this.opts = opts;
+            this.codec = codec;
+            this.st = st;
+            this.et = et;
+            this.cursorTime = cursorTime;
+            this.active = active;
+            this.basalAvg = basalAvg;
+            this.callbackContext = callbackContext;
+            this.chunkSize = opts.optInt("chunkSize", 0);
+            this.limit = opts.optInt("limit", 0);
+            this.paged = (chunkSize > 0) || (limit > 0);
+            this.format = opts.optString("format", "");
+            this.emptyMetadata = opts.optString("emptyResult", "array").equals("metadata");
+            this.columns = (format.length() > 0) ? new ColumnarResult(codec) : null;
+            int maxPoints = opts.optInt("maxPoints", 0);
+            long resolution = opts.optLong("resolution", 0);
+            this.downsampler = ((maxPoints > 0) || (resolution > 0))
+                    ? new Downsampler(codec, opts.optString("downsample", Downsampler.LTTB), st, et, maxPoints, resolution)
+                    : null;
+            this.toSkip = cursorSkip;
+            this.lastTime = cursorTime;
+            this.lastSkip = cursorSkip;
+        }
+
+        /**
+         * Adds the points that follow those already added, full chunks are sent straight away.
+         *
+         * @param datasets the data sets the points come from
+         * @return false if the limit has been reached and no more points are needed
+         */
+        boolean add(List<DataPoint> points, List<DataSet> datasets) throws JSONException {
+            if (emptyMetadata) {
+                // the same source is found in each sub-range of a split read
+                for (DataSet dataset : datasets) {
+                    DataSource dataSource = dataset.getDataSource();
+                    if (sources.containsKey(dataSource.getStreamIdentifier())) continue;
+                    JSONObject source = new JSONObject();
+                    source.put("sourceName", dataSource.getStreamName());
+                    source.put("sourceBundleId", dataSource.getAppPackageName());
+                    sources.put(dataSource.getStreamIdentifier(), source);
+                }
+            }
+            if (downsampler != null) {
+                for (DataPoint datapoint : points) {
+                    downsampler.add(datapoint);
+                }
+                return true;
+            }
+            if (columns != null) {
+                for (DataPoint datapoint : points) {
+                    columns.add(datapoint);
+                }
+                return true;
+            }
+            for (DataPoint datapoint : points) {
+                long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+                if (pst < cursorTime) continue;
+                if ((pst == cursorTime) && (toSkip > 0)) {
+                    // already returned in the previous page
+                    toSkip--;
+                    continue;
+                }
+                if ((limit > 0) && (returned == limit)) {
+                    more = true;
+                    return false;
+                }
+
+                JSONObject obj = codec.toJSON(datapoint);
+                if (active) subtractBasal(obj, basalAvg);
+
+                resultset.put(obj);
+                returned++;
+                if (pst == lastTime) {
+                    lastSkip++;
+                } else {
+                    lastTime = pst;
+                    lastSkip = 1;
+                }
+                if ((chunkSize > 0) && (resultset.length() == chunkSize)) {
+                    sendPage(callbackContext, resultset, true, null);
+                    resultset = new JSONArray();
+                }
+            }
+            return true;
+        }
 
-                        DataPoint dp = DataPoint.create(ds);
-                        dp.setTimestamp(new Date().getTime(), TimeUnit.MILLISECONDS);
-                        dp.getValue(Field.FIELD_DISTANCE).setFloat(100.0f);
+        /**
+         * Sends the last page, or the whole result.
+         */
+        void finish() throws JSONException {
+            if (columns != null) {
+                if (format.equals("binary")) {
+                    long t0 = System.nanoTime();
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, columns.toBytes());
+                    ActionMetrics.addSerialize(System.nanoTime() - t0);
+                    callbackContext.sendPluginResult(result);
+                } else {
+                    callbackContext.success(columns.toJSON());
+                }
+                return;
+            }
+            if (downsampler != null) {
+                resultset = downsampler.toJSON();
+                returned = resultset.length();
+            }
+            JSONObject empty = null;
+            if ((returned == 0) && emptyMetadata) {
+                empty = emptyMetadata(opts.getString("dataType"), st, et, sources.values());
+            }
+            if (paged || (empty != null)) {
+                sendPage(callbackContext, resultset, false, more ? (lastTime + ":" + lastSkip) : null, empty);
+            } else {
+                callbackContext.success(resultset);
+            }
+        }
+    }
+
+    private synchronized HealthCache getCache() {
+        if (cache == null) {
+            cache = new HealthCache(cordova.getActivity().getApplicationContext());
+        }
+        return cache;
+    }
+
+    private synchronized WriteQueue getWriteQueue() {
+        if (writeQueue == null) {
+            writeQueue = new WriteQueue(cordova.getActivity().getApplicationContext());
+        }
+        return writeQueue;
+    }
+
+    /**
+     * Queries raw data using the local cache.
+     * The part of the time range older than CACHE_HOT_WINDOW is served from the cache as far as it is covered,
+     * the rest is read from Fit, and its cold part is added to the cache. The most recent part is always read from Fit.
+     */
+    private void queryCached(final String datatype, final DataTypeCodec codec, final long st, final long et, boolean refresh,
+                             final boolean active, final float basalAvg, final CallbackContext callbackContext) throws JSONException {
+        final long coldEnd = Math.min(et, System.currentTimeMillis() - CACHE_HOT_WINDOW);
+        final String cacheStatus;
+        final JSONArray resultset;
+        final long readSt;
+        if (coldEnd <= st) {
+            // nothing can be cached
+            cacheStatus = "none";
+            resultset = new JSONArray();
+            readSt = st;
+        } else {
+            // the covered end moves forward with the clock, only the part after it is read again
+            long coveredEnd = refresh ? st : Math.min(getCache().coveredEnd(datatype, st), coldEnd);
+            if (coveredEnd >= coldEnd) {
+                cacheStatus = "hit";
+            } else if (coveredEnd > st) {
+                cacheStatus = "partial";
+            } else {
+                cacheStatus = "miss";
+            }
+            resultset = (coveredEnd > st) ? getCache().getPoints(datatype, st, coveredEnd) : new JSONArray();
+            readSt = coveredEnd;
+        }
+
+        if (readSt >= et) {
+            sendCached(resultset, cacheStatus, active, basalAvg, callbackContext);
+            return;
+        }
+        DataReadRequest readRequest = new DataReadRequest.Builder()
+                .setTimeRange(readSt, et, TimeUnit.MILLISECONDS)
+                .read(codec.getDataType())
+                .build();
+        then(getHistoryClient().readData(readRequest), callbackContext, new FitCallback<DataReadResponse>() {
+            @Override
+            public void onResult(DataReadResponse response) throws JSONException {
+                List<JSONObject> cold = new ArrayList<JSONObject>();
+                for (DataSet dataset : response.getDataSets()) {
+                    for (DataPoint datapoint : dataset.getDataPoints()) {
+                        long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+                        JSONObject obj = codec.toJSON(datapoint);
+                        // points overlapping the start of the read are already in the cached part, if any
+                        // otherwise they are returned, as in a query without cache
+                        if ((pst >= readSt) || (readSt == st)) resultset.put(obj);
+                        // points are assigned to the cold or hot part by start time
+                        if (pst < coldEnd) cold.add(obj);
+                    }
+                }
+                if (readSt < coldEnd) {
+                    getCache().putPoints(datatype, readSt, coldEnd, cold);
+                }
+                sendCached(resultset, cacheStatus, active, basalAvg, callbackContext);
+            }
+        });
+    }
+
+    private static void sendCached(JSONArray resultset, String cacheStatus, boolean active, float basalAvg,
+                                   CallbackContext callbackContext) throws JSONException {
+        if (active) {
+            // the cache contains the total calories
+            for (int i = 0; i < resultset.length(); i++) {
+                subtractBasal(resultset.getJSONObject(i), basalAvg);
+            }
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("data", resultset);
+        page.put("more", false);
+        page.put("cache", cacheStatus);
+        callbackContext.success(page);
+    }
+
+    /**
+     * Queries several data types, over one or more time ranges, reading all the data types at once.
+     * Ranges that overlap or touch are read with a single request spanning them, disjoint ranges are read separately
+     * and in parallel, so that far apart ranges don't read the time in between; points are then assigned to each range.
+     * The result is an object keyed by data type, if more than one range is given
+     * each data type contains an array of result sets, one per range.
+     */
+    private void queryBatch(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        JSONObject opts = args.getJSONObject(0);
+        if (!opts.has("dataTypes")) {
+            callbackContext.error("Missing argument dataTypes");
+            return;
+        }
+        JSONArray datatypes = opts.getJSONArray("dataTypes");
+        if (datatypes.length() == 0) {
+            callbackContext.error("Argument dataTypes is empty");
+            return;
+        }
+
+        // time ranges can be given as an array of ranges or as a single startDate - endDate
+        JSONArray ranges;
+        final boolean multirange = opts.has("ranges");
+        if (multirange) {
+            ranges = opts.getJSONArray("ranges");
+            if (ranges.length() == 0) {
+                callbackContext.error("Argument ranges is empty");
+                return;
+            }
+        } else {
+            if (!opts.has("startDate")) {
+                callbackContext.error("Missing argument startDate");
+                return;
+            }
+            if (!opts.has("endDate")) {
+                callbackContext.error("Missing argument endDate");
+                return;
+            }
+            ranges = new JSONArray();
+            JSONObject range = new JSONObject();
+            range.put("startDate", opts.getLong("startDate"));
+            range.put("endDate", opts.getLong("endDate"));
+            ranges.put(range);
+        }
+        final long[] sts = new long[ranges.length()];
+        final long[] ets = new long[ranges.length()];
+        for (int i = 0; i < ranges.length(); i++) {
+            JSONObject range = ranges.getJSONObject(i);
+            if (!range.has("startDate")) {
+                callbackContext.error("Missing argument startDate in range " + i);
+                return;
+            }
+            if (!range.has("endDate")) {
+                callbackContext.error("Missing argument endDate in range " + i);
+                return;
+            }
+            sts[i] = range.getLong("startDate");
+            ets[i] = range.getLong("endDate");
+        }
+
+        final Map<String, DataTypeCodec> requested = new HashMap<String, DataTypeCodec>();
+        for (int i = 0; i < datatypes.length(); i++) {
+            String datatype = datatypes.getString(i);
+            DataTypeCodec codec = getCodec(datatype);
+            if (codec == null) {
+                callbackContext.error("Datatype " + datatype + " not supported");
+                return;
+            }
+            requested.put(datatype, codec);
+        }
+
+        // ranges by start, merged into groups of ranges that overlap or touch, each read with one request
+        Integer[] order = new Integer[sts.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sts[a], sts[b]);
+            }
+        });
+        final List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        final List<Task<DataReadResponse>> reads = new ArrayList<Task<DataReadResponse>>();
+        HistoryClient history = getHistoryClient();
+        int first = 0;
+        while (first < order.length) {
+            List<Integer> group = new ArrayList<Integer>();
+            long gst = sts[order[first]];
+            long get = ets[order[first]];
+            int next = first;
+            while ((next < order.length) && (sts[order[next]] <= get)) {
+                group.add(order[next]);
+                get = Math.max(get, ets[order[next]]);
+                next++;
+            }
+            DataReadRequest.Builder builder = new DataReadRequest.Builder();
+            builder.setTimeRange(gst, get, TimeUnit.MILLISECONDS);
+            for (DataTypeCodec codec : requested.values()) {
+                builder.read(codec.getDataType());
+            }
+            groups.add(group);
+            reads.add(history.readData(builder.build()));
+            first = next;
+        }
+
+        then(Tasks.whenAll(reads), callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void all) throws JSONException {
+                JSONObject results = new JSONObject();
+                for (Map.Entry<String, DataTypeCodec> entry : requested.entrySet()) {
+                    DataTypeCodec codec = entry.getValue();
+                    JSONArray[] resultsets = new JSONArray[sts.length];
+                    for (int i = 0; i < sts.length; i++) {
+                        resultsets[i] = new JSONArray();
+                    }
+                    for (int g = 0; g < reads.size(); g++) {
+                        // a point overlapping ranges of different groups is read by each of them
+                        DataSet dataset = reads.get(g).getResult().getDataSet(codec.getDataType());
+                        for (DataPoint datapoint : dataset.getDataPoints()) {
+                            long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+                            long pet = datapoint.getEndTime(TimeUnit.MILLISECONDS);
+                            JSONObject obj = null;
+                            for (int i : groups.get(g)) {
+                                // a point belongs to a range if it overlaps it, ranges may overlap each other
+                                // bounds are half-open, as in query: a point ending at the start of a range is not in it,
+                                // an instantaneous point at the start is
+                                if ((pst < ets[i]) && ((pet > sts[i]) || (pst >= sts[i]))) {
+                                    if (obj == null) obj = codec.toJSON(datapoint);
+                                    resultsets[i].put(obj);
+                                }
+                            }
+                        }
+                    }
+                    if (multirange) {
+                        JSONArray perrange = new JSONArray();
+                        for (JSONArray resultset : resultsets) {
+                            perrange.put(resultset);
+                        }
+                        results.put(entry.getKey(), perrange);
+                    } else {
+                        results.put(entry.getKey(), resultsets[0]);
+                    }
+                }
+                for (Task<DataReadResponse> read : reads) {
+                    countPoints(read.getResult());
+                }
+                callbackContext.success(results);
+            }
+        });
+    }
+
+    /**
+     * Computes the boundaries of the buckets used in aggregated queries.
+     * Boundaries are computed with the local calendar, so that days, weeks and months have their actual length.
+     *
+     * @param st      start of the query, in milliseconds
+     * @param et      end of the query, in milliseconds
+     * @param bucket  one of hour, day, week, month, year
+     * @param aligned if true, the first bucket starts at the beginning of the calendar period containing st,
+     *                otherwise buckets start at st and the last one is truncated at et
+     * @return an array with starts at index 0 and ends at index 1, or null if the bucket is not recognised
+     */
+    private static long[][] bucketBoundaries(long st, long et, String bucket, boolean aligned) {
+        int field;
+        if (bucket.equalsIgnoreCase("hour")) field = Calendar.HOUR_OF_DAY;
+        else if (bucket.equalsIgnoreCase("day")) field = Calendar.DAY_OF_YEAR;
+        else if (bucket.equalsIgnoreCase("week")) field = Calendar.WEEK_OF_YEAR;
+        else if (bucket.equalsIgnoreCase("month")) field = Calendar.MONTH;
+        else if (bucket.equalsIgnoreCase("year")) field = Calendar.YEAR;
+        else return null;
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(st);
+        if (aligned) {
+            cal.set(Calendar.MILLISECOND, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MINUTE, 0);
+            if (field != Calendar.HOUR_OF_DAY) cal.set(Calendar.HOUR_OF_DAY, 0);
+            if (field == Calendar.WEEK_OF_YEAR) cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
+            if (field == Calendar.MONTH) cal.set(Calendar.DAY_OF_MONTH, 1);
+            if (field == Calendar.YEAR) cal.set(Calendar.DAY_OF_YEAR, 1);
+        }
+        List<Long> starts = new ArrayList<Long>();
+        List<Long> ends = new ArrayList<Long>();
+        long bst = cal.getTimeInMillis();
+        while (bst < et) {
+            cal.add(field, 1);
+            long bet = cal.getTimeInMillis();
+            if (!aligned && bet > et) bet = et;
+            starts.add(bst);
+            ends.add(bet);
+            bst = bet;
+        }
+        long[][] boundaries = new long[2][starts.size()];
+        for (int i = 0; i < starts.size(); i++) {
+            boundaries[0][i] = starts.get(i);
+            boundaries[1][i] = ends.get(i);
+        }
+        return boundaries;
+    }
+
+    /**
+     * Sets a single bucket spanning the whole time range of an aggregated request.
+     * bucketByTime() takes an int, so the milliseconds overflow with ranges longer than about 24 days,
+     * in that case the duration is expressed in seconds, rounded up.
+     */
+    private static void bucketWholeRange(DataReadRequest.Builder builder, long st, long et) {
+        long allms = et - st;
+        if (allms <= Integer.MAX_VALUE) {
+            builder.bucketByTime((int) allms, TimeUnit.MILLISECONDS);
+        } else {
+            builder.bucketByTime((int) ((allms + 999) / 1000), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Gets the daily average of the basal metabolic rate, in kcal per day, if already computed for the day of et.
+     */
+    private Float getCachedBasalDailyAverage(long et) {
+        return basalDailyAverages.get(basalDay(et));
+    }
+
+    private static String basalDay(long et) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(et);
+        return cal.get(Calendar.YEAR) + "-" + cal.get(Calendar.DAY_OF_YEAR);
+    }
+
+    /**
+     * Gets the daily average of the basal metabolic rate, in kcal per day, in the week before et.
+     * The value is computed once per day and then cached.
+     *
+     * @return the task reading the average, failing if no basal metabolic rate is available
+     */
+    private Task<Float> getBasalDailyAverage(final long et) {
+        Float cached = getCachedBasalDailyAverage(et);
+        if (cached != null) return Tasks.forResult(cached);
+
+        //when querying for basal calories, the aggregated value is computed over a period that shall be larger than a day
+        //as we don't expect basal calories to change much over time (they are a usually function of age, sex, weight and height)
+        //so we'll choose a week as time window and then renormalise the value to the original time range
+        long nst = et - BASAL_WINDOW;
+
+        DataReadRequest.Builder builder = new DataReadRequest.Builder();
+        builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+        builder.bucketByTime(1, TimeUnit.DAYS);
+        builder.setTimeRange(nst, et, TimeUnit.MILLISECONDS);
+        DataReadRequest readRequest = builder.build();
+
+        return getHistoryClient().readData(readRequest).continueWith(resultExecutor, new Continuation<DataReadResponse, Float>() {
+            @Override
+            public Float then(Task<DataReadResponse> task) throws Exception {
+                if (!task.isSuccessful()) throw task.getException();
+                float avgs = averageBasal(task.getResult().getBuckets());
+                if (avgs == 0) {
+                    // strange case
+                    // maybe the time window is too small or Fit is missing information for computing the basal
+                    // let's give an error
+                    // TODO: a better approach would be giving some kind of approximation (like a fixed value)
+                    throw new Exception("No basal metabolic energy expenditure found");
+                }
+                basalDailyAverages.put(basalDay(et), avgs);
+                return avgs;
+            }
+        });
+    }
+
+    /**
+     * Computes the average of the daily averages of the basal metabolic rate found in the buckets, 0 if none.
+     */
+    private static float averageBasal(List<Bucket> buckets) {
+        float avgs = 0;
+        int avgsN = 0;
+        for (Bucket bucket : buckets) {
+            // in the com.google.bmr.summary data type, each data point represents
+            // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
+            DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+            if (ds == null) continue;
+            for (DataPoint dp : ds.getDataPoints()) {
+                float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
+                avgs += avg;
+                avgsN++;
+            }
+        }
+        if (avgsN == 0) return 0;
+        // do the average of the averages
+        return avgs / avgsN;
+    }
+
+    /**
+     * Subtracts the basal calories, over the time window of the object, from its total calories.
+     */
+    private static void subtractBasal(JSONObject obj, float basalDailyAvg) throws JSONException {
+        if (!obj.has("value") || !obj.has("startDate")) return;
+        double basal = (basalDailyAvg / (24 * 60 * 60 * 1000)) * (obj.getLong("endDate") - obj.getLong("startDate"));
+        double value = obj.getDouble("value") - basal;
+        //although it shouldn't happen, after subtracting, sometimes the values are negative,
+        //in that case let's return 0 (negative values don't make sense)
+        obj.put("value", value < 0 ? 0 : value);
+    }
+
+    private void queryAggregated(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (!args.getJSONObject(0).has("startDate")) {
+            callbackContext.error("Missing argument startDate");
+            return;
+        }
+        long st = args.getJSONObject(0).getLong("startDate");
+        if (!args.getJSONObject(0).has("endDate")) {
+            callbackContext.error("Missing argument endDate");
+            return;
+        }
+        long et = args.getJSONObject(0).getLong("endDate");
+        if (!args.getJSONObject(0).has("dataType")) {
+            callbackContext.error("Missing argument dataType");
+            return;
+        }
+        String datatype = args.getJSONObject(0).getString("dataType");
+
+        long[][] buckets = null;
+        if (args.getJSONObject(0).has("bucket")) {
+            String bucket = args.getJSONObject(0).getString("bucket");
+            boolean aligned = args.getJSONObject(0).optBoolean("alignBuckets", false);
+            buckets = bucketBoundaries(st, et, bucket, aligned);
+            if (buckets == null) {
+                callbackContext.error("Bucket " + bucket + " not supported");
+                return;
+            }
+            if (buckets[0].length == 0) {
+                callbackContext.success(new JSONArray());
+                return;
+            }
+        }
+
+        // aggregated values of time ranges that cannot change any more can be cached
+        String cacheKey = null;
+        if (args.getJSONObject(0).optBoolean("cache", false) && (et <= System.currentTimeMillis() - CACHE_HOT_WINDOW)) {
+            cacheKey = datatype + "|" + args.getJSONObject(0).optString("bucket") + "|"
+                    + args.getJSONObject(0).optBoolean("alignBuckets", false) + "|" + st + "|" + et;
+            if (args.getJSONObject(0).optBoolean("sampleCount", false)) cacheKey += "|count";
+            if (!args.getJSONObject(0).optBoolean("refresh", false)) {
+                String cached = getCache().getAggregate(cacheKey);
+                if (cached != null) {
+                    if (buckets != null) callbackContext.success(new JSONArray(cached));
+                    else callbackContext.success(new JSONObject(cached));
+                    return;
+                }
+            }
+        }
+
+        //active calories are computed as total calories minus basal calories
+        final boolean active = datatype.equalsIgnoreCase("calories.active");
+        if (active) datatype = "calories";
+        final String fdatatype = datatype;
+        final long fst = st;
+        final long fet = et;
+        final long[][] fbuckets = buckets;
+        final String fcacheKey = cacheKey;
+
+        //basal metabolic rate is treated in a different way
+        if (datatype.equalsIgnoreCase("calories.basal")) {
+            then(getBasalDailyAverage(et), callbackContext, new FitCallback<Float>() {
+                @Override
+                public void onResult(Float avgs) throws JSONException {
+                    // renormalise to the original time window
+                    // avgs is the daily average
+                    if (fbuckets != null) {
+                        JSONArray retBucketsArr = new JSONArray();
+                        for (int i = 0; i < fbuckets[0].length; i++) {
+                            JSONObject obj = new AggregateAccumulator(fdatatype).toJSON(fbuckets[0][i], fbuckets[1][i]);
+                            obj.put("value", (avgs / (24 * 60 * 60 * 1000)) * (fbuckets[1][i] - fbuckets[0][i]));
+                            retBucketsArr.put(obj);
+                        }
+                        if (fcacheKey != null) getCache().putAggregate(fcacheKey, retBucketsArr.toString());
+                        callbackContext.success(retBucketsArr);
+                    } else {
+                        JSONObject obj = new AggregateAccumulator(fdatatype).toJSON(fst, fet);
+                        obj.put("value", (avgs / (24 * 60 * 60 * 1000)) * (fet - fst));
+                        if (fcacheKey != null) getCache().putAggregate(fcacheKey, obj.toString());
+                        callbackContext.success(obj);
+                    }
+                }
+            });
+            // no need to go further
+            return;
+        }
+
+        DataReadRequest.Builder builder = new DataReadRequest.Builder();
+        if (datatype.equalsIgnoreCase("steps")) {
+            builder.aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA);
+        } else if (datatype.equalsIgnoreCase("distance")) {
+            builder.aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA);
+        } else if (datatype.equalsIgnoreCase("calories")) {
+            builder.aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED);
+        } else if (datatype.equalsIgnoreCase("activity")) {
+            builder.aggregate(DataType.TYPE_ACTIVITY_SEGMENT, DataType.AGGREGATE_ACTIVITY_SUMMARY);
+        } else if (summarydatatypes.get(datatype) != null) {
+            builder.aggregate(bodydatatypes.get(datatype), summarydatatypes.get(datatype));
+        } else {
+            callbackContext.error("Datatype " + datatype + " not supported");
+            return;
+        }
+
+        if (buckets != null) {
+            // Fit buckets have a fixed length, while days (DST), weeks and months don't
+            // so Fit is asked for hourly or daily buckets, which are then merged into the calendar buckets
+            builder.setTimeRange(buckets[0][0], et, TimeUnit.MILLISECONDS);
+            if (args.getJSONObject(0).getString("bucket").equalsIgnoreCase("hour")) {
+                builder.bucketByTime(1, TimeUnit.HOURS);
+            } else {
+                builder.bucketByTime(1, TimeUnit.DAYS);
+            }
+        } else {
+            builder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
+            bucketWholeRange(builder, st, et);
+        }
+
+        // the basal rate, when needed, is read in parallel with the aggregates
+        // a null basal rate means that it is computed from the aggregates themselves
+        Task<Float> basal = Tasks.forResult(null);
+        if (active) {
+            Float cachedBasal = getCachedBasalDailyAverage(et);
+            long rangeStart = (buckets != null) ? buckets[0][0] : st;
+            if (cachedBasal != null) {
+                basal = Tasks.forResult(cachedBasal);
+            } else if (et - rangeStart >= BASAL_WINDOW) {
+                // the window is long enough for computing the basal rate, it can be read in the same request
+                builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+            } else {
+                basal = getBasalDailyAverage(et);
+            }
+        }
+
+        // Fit summaries have no sample count, samples are counted on the raw data, read in parallel
+        // they are only counted here, and never returned
+        Task<DataReadResponse> samplesRead = Tasks.forResult(null);
+        if ((summarydatatypes.get(datatype) != null) && args.getJSONObject(0).optBoolean("sampleCount", false)) {
+            DataReadRequest samplesRequest = new DataReadRequest.Builder()
+                    .setTimeRange((buckets != null) ? buckets[0][0] : st, et, TimeUnit.MILLISECONDS)
+                    .read(bodydatatypes.get(datatype))
+                    .build();
+            samplesRead = getHistoryClient().readData(samplesRequest);
+        }
+
+        final Task<DataReadResponse> read = getHistoryClient().readData(builder.build());
+        final Task<Float> fbasal = basal;
+        final Task<DataReadResponse> fsamplesRead = samplesRead;
+        then(Tasks.whenAll(read, basal, samplesRead), callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void all) throws JSONException {
+                DataReadResponse response = read.getResult();
+                countPoints(response);
+                long[] samples = null;
+                if (fsamplesRead.getResult() != null) {
+                    countPoints(fsamplesRead.getResult());
+                    samples = countSamples(response.getBuckets(), fsamplesRead.getResult());
+                }
+                Float basalAvg = fbasal.getResult();
+                if (active && (basalAvg == null)) {
+                    basalAvg = averageBasal(response.getBuckets());
+                    if (basalAvg == 0) {
+                        callbackContext.error("No basal metabolic energy expenditure found");
+                        return;
+                    }
+                }
+                if (fbuckets != null) {
+                    AggregateAccumulator[] retBuckets = new AggregateAccumulator[fbuckets[0].length];
+                    for (int i = 0; i < retBuckets.length; i++) {
+                        retBuckets[i] = new AggregateAccumulator(fdatatype);
+                    }
+                    int j = 0;
+                    int k = 0;
+                    for (Bucket bucket : response.getBuckets()) {
+                        // Fit buckets are sorted, each one goes to the calendar bucket containing its middle point
+                        long mid = (bucket.getStartTime(TimeUnit.MILLISECONDS) + bucket.getEndTime(TimeUnit.MILLISECONDS)) / 2;
+                        while ((j < retBuckets.length - 1) && (mid >= fbuckets[1][j])) j++;
+                        for (DataSet dataset : bucket.getDataSets()) {
+                            if (dataset.getDataType().equals(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY)) continue;
+                            for (DataPoint datapoint : dataset.getDataPoints()) {
+                                if (samples != null) retBuckets[j].add(datapoint, samples[k]);
+                                else retBuckets[j].add(datapoint);
+                            }
+                        }
+                        k++;
+                    }
+                    JSONArray retBucketsArr = new JSONArray();
+                    for (int i = 0; i < retBuckets.length; i++) {
+                        JSONObject obj = retBuckets[i].toJSON(fbuckets[0][i], fbuckets[1][i]);
+                        if (active) subtractBasal(obj, basalAvg);
+                        retBucketsArr.put(obj);
+                    }
+                    if (fcacheKey != null) getCache().putAggregate(fcacheKey, retBucketsArr.toString());
+                    callbackContext.success(retBucketsArr);
+                } else {
+                    AggregateAccumulator acc = new AggregateAccumulator(fdatatype);
+                    int k = 0;
+                    for (Bucket bucket : response.getBuckets()) {
+                        for (DataSet dataset : bucket.getDataSets()) {
+                            if (dataset.getDataType().equals(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY)) continue;
+                            for (DataPoint datapoint : dataset.getDataPoints()) {
+                                if (samples != null) acc.add(datapoint, samples[k]);
+                                else acc.add(datapoint);
+                            }
+                        }
+                        k++;
+                    }
+                    // the time range is the one of the data found
+                    JSONObject obj = acc.toJSON();
+                    if (active) subtractBasal(obj, basalAvg);
+                    if (fcacheKey != null) getCache().putAggregate(fcacheKey, obj.toString());
+                    callbackContext.success(obj);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Counts the raw samples starting in each of the buckets of an aggregated read, buckets are sorted and don't overlap.
+     */
+    private static long[] countSamples(List<Bucket> buckets, DataReadResponse raw) {
+        long[] starts = new long[buckets.size()];
+        long[] ends = new long[buckets.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = buckets.get(i).getStartTime(TimeUnit.MILLISECONDS);
+            ends[i] = buckets.get(i).getEndTime(TimeUnit.MILLISECONDS);
+        }
+        long[] counts = new long[starts.length];
+        for (DataSet dataset : raw.getDataSets()) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                long t = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+                // the last bucket starting before the sample
+                int i = Arrays.binarySearch(starts, t);
+                if (i < 0) i = -i - 2;
+                if ((i >= 0) && (t < ends[i])) counts[i]++;
+            }
+        }
+        return counts;
+    }
+
+    private void querySessions(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (!args.getJSONObject(0).has("startDate")) {
+            callbackContext.error("Missing argument startDate");
+            return;
+        }
+        long st = args.getJSONObject(0).getLong("startDate");
+        if (!args.getJSONObject(0).has("endDate")) {
+            callbackContext.error("Missing argument endDate");
+            return;
+        }
+        long et = args.getJSONObject(0).getLong("endDate");
+
+        // aggregated data types that can be computed per session, with their aggregate data types
+        final Map<String, DataType[]> aggregates = new LinkedHashMap<String, DataType[]>();
+        JSONArray aggrTypes = args.getJSONObject(0).optJSONArray("aggregates");
+        if (aggrTypes != null) {
+            for (int i = 0; i < aggrTypes.length(); i++) {
+                String datatype = aggrTypes.getString(i);
+                if (datatype.equalsIgnoreCase("steps")) {
+                    aggregates.put(datatype, new DataType[]{DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA});
+                } else if (datatype.equalsIgnoreCase("distance")) {
+                    aggregates.put(datatype, new DataType[]{DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA});
+                } else if (datatype.equalsIgnoreCase("calories")) {
+                    aggregates.put(datatype, new DataType[]{DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED});
+                } else if (datatype.equalsIgnoreCase("heart_rate")) {
+                    aggregates.put(datatype, new DataType[]{DataType.TYPE_HEART_RATE_BPM, DataType.AGGREGATE_HEART_RATE_SUMMARY});
+                } else {
+                    callbackContext.error("Datatype " + datatype + " not supported for sessions");
+                    return;
+                }
+            }
+        }
+
+        SessionReadRequest sessionRequest = new SessionReadRequest.Builder()
+                .setTimeInterval(st, et, TimeUnit.MILLISECONDS)
+                .readSessionsFromAllApps()
+                .build();
+        final Task<SessionReadResponse> sessionsRead = getSessionsClient().readSession(sessionRequest);
+
+        // the aggregates of all the sessions are read with one request bucketed by session, in parallel with the sessions
+        Task<DataReadResponse> aggregatesRead = Tasks.forResult(null);
+        if (!aggregates.isEmpty()) {
+            DataReadRequest.Builder builder = new DataReadRequest.Builder();
+            for (DataType[] types : aggregates.values()) {
+                builder.aggregate(types[0], types[1]);
+            }
+            builder.bucketBySession(1, TimeUnit.MILLISECONDS);
+            builder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
+            aggregatesRead = getHistoryClient().readData(builder.build());
+        }
 
-                        DataSet dset = DataSet.create(ds);
-                        dset.add(dp);
-                        dataset = dset;
-                    } catch (Throwable t) {
-                        System.out.println(t.getMessage());
+        final Task<DataReadResponse> faggregatesRead = aggregatesRead;
+        then(Tasks.whenAll(sessionsRead, aggregatesRead), callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void all) throws JSONException {
+                Map<String, JSONObject> sessionAggregates = new HashMap<String, JSONObject>();
+                DataReadResponse dataReadResponse = faggregatesRead.getResult();
+                if (dataReadResponse != null) {
+                    countPoints(dataReadResponse);
+                    for (Bucket bucket : dataReadResponse.getBuckets()) {
+                        Session session = bucket.getSession();
+                        if (session == null) continue;
+                        JSONObject sessAggr = new JSONObject();
+                        for (Map.Entry<String, DataType[]> aggregate : aggregates.entrySet()) {
+                            AggregateAccumulator acc = new AggregateAccumulator(aggregate.getKey());
+                            DataSet dataset = bucket.getDataSet(aggregate.getValue()[1]);
+                            if (dataset != null) {
+                                for (DataPoint datapoint : dataset.getDataPoints()) {
+                                    acc.add(datapoint);
+                                }
+                            }
+                            JSONObject obj = acc.toJSON(session.getStartTime(TimeUnit.MILLISECONDS), session.getEndTime(TimeUnit.MILLISECONDS));
+                            // summaries without data have no value
+                            if (!obj.has("value")) continue;
+                            JSONObject value = new JSONObject();
+                            value.put("value", obj.get("value"));
+                            value.put("unit", obj.get("unit"));
+                            sessAggr.put(aggregate.getKey(), value);
+                        }
+                        sessionAggregates.put(session.getIdentifier(), sessAggr);
                     }
-
                 }
 
-                for (DataPoint datapoint : dataset.getDataPoints()) {
+                JSONArray resultset = new JSONArray();
+                for (Session session : sessionsRead.getResult().getSessions()) {
                     JSONObject obj = new JSONObject();
-                    obj.put("startDate", datapoint.getStartTime(TimeUnit.MILLISECONDS));
-                    obj.put("endDate", datapoint.getEndTime(TimeUnit.MILLISECONDS));
-                    DataSource dataSource = datapoint.getOriginalDataSource();
-                    if (dataSource != null) {
-                        String sourceName = dataSource.getName();
-                        obj.put("sourceName", sourceName);
-                        String sourceBundleId = dataSource.getAppPackageName();
-                        obj.put("sourceBundleId", sourceBundleId);
-                    }
-
-                    //reference for fields: https://developers.google.com/android/reference/com/google/android/gms/fitness/data/Field.html
-                    if (DT.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-                        int steps = datapoint.getValue(Field.FIELD_STEPS).asInt();
-                        obj.put("value", steps);
-                        obj.put("unit", "count");
-                    } else if (DT.equals(DataType.TYPE_DISTANCE_DELTA)) {
-                        float distance = datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
-                        obj.put("value", distance);
-                        obj.put("unit", "m");
-                    } else if (DT.equals(DataType.TYPE_CALORIES_EXPENDED)) {
-                        float calories = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-                        obj.put("value", calories);
-                        obj.put("unit", "kcal");
-                    } else if (DT.equals(DataType.TYPE_BASAL_METABOLIC_RATE)) {
-                        float calories = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-                        obj.put("value", calories);
-                        obj.put("unit", "kcal");
-                    } else if (DT.equals(DataType.TYPE_HEIGHT)) {
-                        float height = datapoint.getValue(Field.FIELD_HEIGHT).asFloat();
-                        obj.put("value", height);
-                        obj.put("unit", "m");
-                    } else if (DT.equals(DataType.TYPE_WEIGHT)) {
-                        float weight = datapoint.getValue(Field.FIELD_WEIGHT).asFloat();
-                        obj.put("value", weight);
-                        obj.put("unit", "kg");
-                    } else if (DT.equals(DataType.TYPE_HEART_RATE_BPM)) {
-                        float weight = datapoint.getValue(Field.FIELD_BPM).asFloat();
-                        obj.put("value", weight);
-                        obj.put("unit", "bpm");
-                    } else if (DT.equals(DataType.TYPE_BODY_FAT_PERCENTAGE)) {
-                        float weight = datapoint.getValue(Field.FIELD_PERCENTAGE).asFloat();
-                        obj.put("value", weight);
-                        obj.put("unit", "percent");
-                    } else if (DT.equals(DataType.TYPE_ACTIVITY_SEGMENT)) {
-                        String activity = datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
-                        obj.put("value", activity);
-                        obj.put("unit", "activityType");
-                    } else if (DT.equals(customdatatypes.get("gender"))) {
-                        for (Field f : customdatatypes.get("gender").getFields()) {
-                            //there should be only one field named gender
-                            String gender = datapoint.getValue(f).asString();
-                            obj.put("value", gender);
-                        }
-                    } else if (DT.equals(customdatatypes.get("date_of_birth"))) {
-                        JSONObject dob = new JSONObject();
-                        for (Field f : customdatatypes.get("date_of_birth").getFields()) {
-                            //all fields are integers
-                            int fieldvalue = datapoint.getValue(f).asInt();
-                            dob.put(f.getName(), fieldvalue);
-                        }
-                        obj.put("value", dob);
+                    obj.put("startDate", session.getStartTime(TimeUnit.MILLISECONDS));
+                    obj.put("endDate", session.getEndTime(TimeUnit.MILLISECONDS));
+                    obj.put("name", session.getName());
+                    obj.put("identifier", session.getIdentifier());
+                    obj.put("description", session.getDescription());
+                    obj.put("activityType", session.getActivity());
+                    obj.put("sourceBundleId", session.getAppPackageName());
+                    if (!aggregates.isEmpty()) {
+                        JSONObject sessAggr = sessionAggregates.get(session.getIdentifier());
+                        obj.put("aggregates", (sessAggr != null) ? sessAggr : new JSONObject());
                     }
-
                     resultset.put(obj);
                 }
+                callbackContext.success(resultset);
             }
-            callbackContext.success(resultset);
-        } else {
-            callbackContext.error(dataReadResult.getStatus().getStatusMessage());
-        }
+        });
     }
 
-    private void queryAggregated(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
-        if (!args.getJSONObject(0).has("startDate")) {
-            callbackContext.error("Missing argument startDate");
-            return;
-        }
-        long st = args.getJSONObject(0).getLong("startDate");
-        if (!args.getJSONObject(0).has("endDate")) {
-            callbackContext.error("Missing argument endDate");
-            return;
-        }
-        long et = args.getJSONObject(0).getLong("endDate");
+    /**
+     * Returns the data points added since the previous sync, together with a new sync token.
+     * The token contains, for each data source, the end date of the last data point returned (high-water mark).
+     */
+    private void sync(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
         if (!args.getJSONObject(0).has("dataType")) {
             callbackContext.error("Missing argument dataType");
             return;
         }
-        String datatype = args.getJSONObject(0).getString("dataType");
+        final String datatype = args.getJSONObject(0).getString("dataType");
+        final DataTypeCodec codec = getCodec(datatype);
+        if (codec == null) {
+            callbackContext.error("Datatype " + datatype + " not supported");
+            return;
+        }
 
-        if ((mClient == null) || (!mClient.isConnected())) {
-            if (!lightConnect()) {
-                callbackContext.error("Cannot connect to Google Fit");
+        final JSONObject marks;
+        final long[] seen;
+        long st;
+        if (args.getJSONObject(0).has("syncToken")) {
+            JSONObject token;
+            try {
+                token = new JSONObject(new String(Base64.decode(args.getJSONObject(0).getString("syncToken"), Base64.NO_WRAP | Base64.URL_SAFE), "UTF-8"));
+            } catch (Exception ex) {
+                callbackContext.error("Invalid syncToken");
+                return;
+            }
+            if (!datatype.equals(token.optString("dataType"))) {
+                callbackContext.error("The syncToken is not for datatype " + datatype);
+                return;
+            }
+            marks = token.getJSONObject("marks");
+            try {
+                seen = decodeFingerprints(token.optString("seen", ""));
+            } catch (IllegalArgumentException ex) {
+                callbackContext.error("Invalid syncToken");
                 return;
             }
+            st = syncReadStart(token.getLong("since"), marks);
+        } else if (args.getJSONObject(0).has("startDate")) {
+            marks = new JSONObject();
+            seen = new long[0];
+            st = args.getJSONObject(0).getLong("startDate");
+        } else {
+            callbackContext.error("Missing argument startDate or syncToken");
+            return;
         }
+        final long et = System.currentTimeMillis();
 
-        //basal metabolic rate is treated in a different way
-        if (datatype.equalsIgnoreCase("calories.basal")) {
-            //when querying for basal calories, the aggregated value is computed over a period that shall be larger than a day
-            //as we don't expect basal calories to change much over time (they are a usually function of age, sex, weight and height)
-            //so we'll choose a week as time window and then renormalise the value to the original time range
-            //TODO: a better approach would be using a time window similar to the original one, in case the window is larger than a week
-            Calendar cal = java.util.Calendar.getInstance();
-            cal.setTime(new Date(et));
-            //set start time to a week before end time
-            cal.add(Calendar.WEEK_OF_YEAR, -1);
-            long nst = cal.getTimeInMillis();
+        DataReadRequest readRequest = new DataReadRequest.Builder()
+                .setTimeRange(st, et, TimeUnit.MILLISECONDS)
+                .read(codec.getDataType())
+                .build();
+        then(getHistoryClient().readData(readRequest), callbackContext, new FitCallback<DataReadResponse>() {
+            @Override
+            public void onResult(DataReadResponse response) throws JSONException {
+                JSONArray resultset = new JSONArray();
+                JSONObject newMarks = new JSONObject(marks.toString());
+                // the records read, with their end date, to be recognised by the next sync
+                List<long[]> read = new ArrayList<long[]>();
+                for (DataSet dataset : response.getDataSets()) {
+                    for (DataPoint datapoint : dataset.getDataPoints()) {
+                        DataSource source = datapoint.getOriginalDataSource();
+                        if (source == null) source = dataset.getDataSource();
+                        String sourceId = source.getStreamIdentifier();
+                        long pet = datapoint.getEndTime(TimeUnit.MILLISECONDS);
+                        JSONObject obj = codec.toJSON(datapoint);
+                        long fingerprint = fingerprint(sourceId, obj);
+                        read.add(new long[]{fingerprint, pet});
+                        // already returned by a previous sync: late records, even older than the mark, are not
+                        if (Arrays.binarySearch(seen, fingerprint) >= 0) continue;
+                        resultset.put(obj);
+                        if (pet > newMarks.optLong(sourceId, Long.MIN_VALUE)) newMarks.put(sourceId, pet);
+                    }
+                }
 
-            DataReadRequest.Builder builder = new DataReadRequest.Builder();
-            builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-            builder.bucketByTime(1, TimeUnit.DAYS);
-            builder.setTimeRange(nst, et, TimeUnit.MILLISECONDS);
-            DataReadRequest readRequest = builder.build();
-
-            DataReadResult dataReadResult = Fitness.HistoryApi.readData(mClient, readRequest).await();
-
-            if (dataReadResult.getStatus().isSuccess()) {
-                JSONObject obj = new JSONObject();
-                float avgs = 0;
-                int avgsN = 0;
-                for (Bucket bucket : dataReadResult.getBuckets()) {
-                    // in the com.google.bmr.summary data type, each data point represents
-                    // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
-                    DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-                    for (DataPoint dp : ds.getDataPoints()) {
-                        float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
-                        avgs += avg;
-                        avgsN++;
+                JSONArray sourceIds = newMarks.names();
+                if (sourceIds != null) {
+                    for (int i = 0; i < sourceIds.length(); i++) {
+                        if (newMarks.getLong(sourceIds.getString(i)) < et - SYNC_MAX_WINDOW) newMarks.remove(sourceIds.getString(i));
                     }
                 }
-                if (avgs == 0) {
-                    // strange case
-                    // maybe the time window is too small or Fit is missing information for computing the basal
-                    // let's give an error
-                    // TODO: a better approach would be giving some kind of approximation (like a fixed value)
-                    callbackContext.error("No basal metabolic energy expenditure found");
-                }
-                // do the average of the averages
-                avgs /= avgsN;
-                // renormalise to the original time window
-                // avgs is the daily average
-                avgs = (avgs / (24 * 60 * 60 * 1000)) * (et - st);
-                obj.put("value", avgs);
-                obj.put("startDate", st);
-                obj.put("endDate", et);
-                obj.put("unit", "kcal");
-
-                callbackContext.success(obj);
-            } else {
-                callbackContext.error(dataReadResult.getStatus().getStatusMessage());
+                // only the records the next sync can read again are remembered
+                long nextSt = syncReadStart(et, newMarks);
+                long[] newSeen = new long[read.size()];
+                int n = 0;
+                for (long[] record : read) {
+                    if (record[1] >= nextSt) newSeen[n++] = record[0];
+                }
+                JSONObject token = new JSONObject();
+                token.put("dataType", datatype);
+                token.put("since", et);
+                token.put("marks", newMarks);
+                token.put("seen", encodeFingerprints(Arrays.copyOf(newSeen, n)));
+                String syncToken;
+                try {
+                    syncToken = Base64.encodeToString(token.toString().getBytes("UTF-8"), Base64.NO_WRAP | Base64.URL_SAFE);
+                } catch (java.io.UnsupportedEncodingException ex) {
+                    // UTF-8 is always supported
+                    throw new RuntimeException(ex);
+                }
+                JSONObject result = new JSONObject();
+                result.put("data", resultset);
+                result.put("syncToken", syncToken);
+                callbackContext.success(result);
+            }
+        });
+    }
+
+    /**
+     * Start of the read of a sync: the lookback before the oldest high-water mark, within the maximum window.
+     */
+    private static long syncReadStart(long since, JSONObject marks) throws JSONException {
+        long st = since;
+        JSONArray sourceIds = marks.names();
+        if (sourceIds != null) {
+            for (int i = 0; i < sourceIds.length(); i++) {
+                st = Math.min(st, marks.getLong(sourceIds.getString(i)));
             }
-            // no need to go further
-            return;
         }
+        return Math.max(st, since - SYNC_MAX_WINDOW) - SYNC_LOOKBACK;
+    }
 
-        DataReadRequest.Builder builder = new DataReadRequest.Builder();
-        builder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
-        int allms = (int) (et - st);
+    /**
+     * Identifies a record by its source, start and end dates and value (64 bit FNV-1a).
+     */
+    private static long fingerprint(String sourceId, JSONObject obj) {
+        String key = sourceId + "|" + obj.opt("startDate") + "|" + obj.opt("endDate") + "|" + obj.opt("value");
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
-        if (datatype.equalsIgnoreCase("steps")) {
-            builder.aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA);
-            builder.bucketByTime(allms, TimeUnit.MILLISECONDS);
-        } else if (datatype.equalsIgnoreCase("distance")) {
-            builder.aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA);
-            builder.bucketByTime(allms, TimeUnit.MILLISECONDS);
-        } else if (datatype.equalsIgnoreCase("calories")) {
-            builder.aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED);
-            builder.bucketByTime(allms, TimeUnit.MILLISECONDS);
-        } else if (datatype.equalsIgnoreCase("activity")) {
-            builder.aggregate(DataType.TYPE_ACTIVITY_SEGMENT, DataType.AGGREGATE_ACTIVITY_SUMMARY);
-            builder.bucketByTime(allms, TimeUnit.MILLISECONDS);
-        } else {
+    // sorted fingerprints, as base64 of 8 bytes each
+    private static String encodeFingerprints(long[] fingerprints) {
+        Arrays.sort(fingerprints);
+        ByteBuffer buffer = ByteBuffer.allocate(fingerprints.length * 8);
+        for (long fingerprint : fingerprints) {
+            buffer.putLong(fingerprint);
+        }
+        return Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+    }
+
+    private static long[] decodeFingerprints(String encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.decode(encoded, Base64.NO_WRAP));
+        long[] fingerprints = new long[buffer.remaining() / 8];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = buffer.getLong();
+        }
+        // sorted when encoded
+        return fingerprints;
+    }
+
+    private void subscribe(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (!args.getJSONObject(0).has("dataType")) {
+            callbackContext.error("Missing argument dataType");
+            return;
+        }
+        String datatype = args.getJSONObject(0).getString("dataType");
+        DataTypeCodec codec = getCodec(datatype);
+        if (codec == null) {
             callbackContext.error("Datatype " + datatype + " not supported");
             return;
         }
+        long samplingRate = args.getJSONObject(0).optLong("samplingRate", DEFAULT_SAMPLING_RATE);
+        final long interval = args.getJSONObject(0).optLong("interval", DEFAULT_DELIVERY_INTERVAL);
+        if ((samplingRate <= 0) || (interval <= 0)) {
+            callbackContext.error("samplingRate and interval must be positive");
+            return;
+        }
 
-        DataReadRequest readRequest = builder.build();
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(mClient, readRequest).await();
-
-        if (dataReadResult.getStatus().isSuccess()) {
-            JSONObject obj = new JSONObject();
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                for (DataSet dataset : bucket.getDataSets()) {
-                    for (DataPoint datapoint : dataset.getDataPoints()) {
-                        long nsd = datapoint.getStartTime(TimeUnit.MILLISECONDS);
-                        if (obj.has("startDate")) {
-                            long osd = obj.getLong("startDate");
-                            if (nsd < osd) obj.put("startDate", nsd);
-                        } else
-                            obj.put("startDate", nsd);
-
-                        long ned = datapoint.getEndTime(TimeUnit.MILLISECONDS);
-                        if (obj.has("endDate")) {
-                            long oed = obj.getLong("endDate");
-                            if (ned > oed) obj.put("endDate", ned);
-                        } else
-                            obj.put("endDate", ned);
-
-                        if (datatype.equalsIgnoreCase("steps")) {
-                            int nsteps = datapoint.getValue(Field.FIELD_STEPS).asInt();
-                            if (obj.has("value")) {
-                                int osteps = obj.getInt("value");
-                                obj.put("value", osteps + nsteps);
-                            } else {
-                                obj.put("value", nsteps);
-                                obj.put("unit", "count");
-                            }
-                        } else if (datatype.equalsIgnoreCase("distance")) {
-                            float ndist = datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
-                            if (obj.has("value")) {
-                                double odist = obj.getDouble("value");
-                                obj.put("value", odist + ndist);
-                            } else {
-                                obj.put("value", ndist);
-                                obj.put("unit", "m");
-                            }
-                        } else if (datatype.equalsIgnoreCase("calories")) {
-                            float ncal = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-                            if (obj.has("value")) {
-                                double ocal = obj.getDouble("value");
-                                obj.put("value", ocal + ncal);
-                            } else {
-                                obj.put("value", ncal);
-                                obj.put("unit", "kcal");
-                            }
-                        } else if (datatype.equalsIgnoreCase("activity")) {
-                            JSONObject actobj;
-                            String activity = datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
-                            if (obj.has("value")) {
-                                actobj = obj.getJSONObject("value");
-                            } else {
-                                actobj = new JSONObject();
-                                obj.put("unit", "activitySummary");
-                            }
-                            JSONObject summary;
-                            int ndur = datapoint.getValue(Field.FIELD_DURATION).asInt();
-                            if (actobj.has(activity)) {
-                                summary = actobj.getJSONObject(activity);
-                                int odur = summary.getInt("duration");
-                                summary.put("duration", odur + ndur);
-                            } else {
-                                summary = new JSONObject();
-                                summary.put("duration", ndur);
-                            }
-                            actobj.put(activity, summary);
-                            obj.put("value", actobj);
-                        }
-                    }
+        SensorRequest request = new SensorRequest.Builder()
+                .setDataType(codec.getDataType())
+                .setSamplingRate(samplingRate, TimeUnit.MILLISECONDS)
+                .build();
+        final SensorSubscription subscription = new SensorSubscription(Integer.toString(subscriptionIds.incrementAndGet()), codec, callbackContext);
+        // known while the listener is being added, so that it can be stopped by a reset
+        subscriptions.put(subscription.getId(), subscription);
+        Task<Void> add = getSensorsClient().add(request, subscription);
+        add.addOnCompleteListener(resultExecutor, new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(Task<Void> done) {
+                if (!done.isSuccessful()) subscriptions.remove(subscription.getId());
+            }
+        });
+        then(add, callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void added) {
+                if (!subscription.start(deliveryExecutor, interval)) {
+                    // stopped while the listener was being added
+                    getSensorsClient().remove(subscription);
                 }
             }
-            callbackContext.success(obj);
-        } else {
-            callbackContext.error(dataReadResult.getStatus().getStatusMessage());
-        }
+        });
     }
 
+    private void unsubscribe(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (!args.getJSONObject(0).has("id")) {
+            callbackContext.error("Missing argument id");
+            return;
+        }
+        final String id = args.getJSONObject(0).getString("id");
+        final SensorSubscription subscription = subscriptions.remove(id);
+        if (subscription == null) {
+            callbackContext.error("Subscription " + id + " not found");
+            return;
+        }
+        if (!subscription.stop(true)) {
+            // the listener is still being added, it is removed once added
+            callbackContext.success();
+            return;
+        }
+        // the subscription is over even if the listener cannot be removed
+        then(getSensorsClient().remove(subscription).continueWith(new Continuation<Boolean, Void>() {
+            @Override
+            public Void then(Task<Boolean> task) {
+                if (!task.isSuccessful()) Log.w(TAG, "Cannot remove the listener of subscription " + id, task.getException());
+                return null;
+            }
+        }), callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void removed) {
+                callbackContext.success();
+            }
+        });
+    }
 
     private void store(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
         if (!args.getJSONObject(0).has("startDate")) {
@@ -786,28 +2356,12 @@ public class HealthPlugin extends CordovaPlugin {
             sourceBundleId = args.getJSONObject(0).getString("sourceBundleId");
         }
 
-        DataType dt = null;
-        if (bodydatatypes.get(datatype) != null)
-            dt = bodydatatypes.get(datatype);
-        if (activitydatatypes.get(datatype) != null)
-            dt = activitydatatypes.get(datatype);
-        if (locationdatatypes.get(datatype) != null)
-            dt = locationdatatypes.get(datatype);
-        if (nutritiondatatypes.get(datatype) != null)
-            dt = nutritiondatatypes.get(datatype);
-        if (customdatatypes.get(datatype) != null)
-            dt = customdatatypes.get(datatype);
-        if (dt == null) {
+        DataTypeCodec codec = getCodec(datatype);
+        if (codec == null) {
             callbackContext.error("Datatype " + datatype + " not supported");
             return;
         }
-
-        if ((mClient == null) || (!mClient.isConnected())) {
-            if (!lightConnect()) {
-                callbackContext.error("Cannot connect to Google Fit");
-                return;
-            }
-        }
+        DataType dt = codec.getDataType();
 
         DataSource datasrc = new DataSource.Builder()
                 .setAppPackageName(sourceBundleId)
@@ -819,68 +2373,373 @@ public class HealthPlugin extends CordovaPlugin {
         DataSet dataSet = DataSet.create(datasrc);
         DataPoint datapoint = DataPoint.create(datasrc);
         datapoint.setTimeInterval(st, et, TimeUnit.MILLISECONDS);
-        if (dt.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-            String value = args.getJSONObject(0).getString("value");
-            int steps = Integer.parseInt(value);
-            datapoint.getValue(Field.FIELD_STEPS).setInt(steps);
-        } else if (dt.equals(DataType.TYPE_DISTANCE_DELTA)) {
-            String value = args.getJSONObject(0).getString("value");
-            float dist = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_DISTANCE).setFloat(dist);
-        } else if (dt.equals(DataType.TYPE_CALORIES_EXPENDED)) {
-            String value = args.getJSONObject(0).getString("value");
-            float cals = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_CALORIES).setFloat(cals);
-        } else if (dt.equals(DataType.TYPE_HEIGHT)) {
-            String value = args.getJSONObject(0).getString("value");
-            float height = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_HEIGHT).setFloat(height);
-        } else if (dt.equals(DataType.TYPE_WEIGHT)) {
-            String value = args.getJSONObject(0).getString("value");
-            float weight = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_WEIGHT).setFloat(weight);
-        } else if (dt.equals(DataType.TYPE_HEART_RATE_BPM)) {
-            String value = args.getJSONObject(0).getString("value");
-            float hr = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_BPM).setFloat(hr);
-        } else if (dt.equals(DataType.TYPE_BODY_FAT_PERCENTAGE)) {
-            String value = args.getJSONObject(0).getString("value");
-            float perc = Float.parseFloat(value);
-            datapoint.getValue(Field.FIELD_PERCENTAGE).setFloat(perc);
-        } else if (dt.equals(DataType.TYPE_ACTIVITY_SEGMENT)) {
-            String value = args.getJSONObject(0).getString("value");
-            datapoint.getValue(Field.FIELD_ACTIVITY).setActivity(value);
-        } else if (dt.equals(customdatatypes.get("gender"))) {
-            String value = args.getJSONObject(0).getString("value");
-            for (Field f : customdatatypes.get("gender").getFields()) {
-                //we expect only one field named gender
-                datapoint.getValue(f).setString(value);
-            }
-        } else if (dt.equals(customdatatypes.get("date_of_birth"))) {
-            JSONObject dob = args.getJSONObject(0).getJSONObject("value");
-            int year = dob.getInt("year");
-            int month = dob.getInt("month");
-            int day = dob.getInt("day");
-
-            for (Field f : customdatatypes.get("date_of_birth").getFields()) {
-                if (f.getName().equalsIgnoreCase("day"))
-                    datapoint.getValue(f).setInt(day);
-                if (f.getName().equalsIgnoreCase("month"))
-                    datapoint.getValue(f).setInt(month);
-                if (f.getName().equalsIgnoreCase("year"))
-                    datapoint.getValue(f).setInt(year);
+        codec.encode(args.getJSONObject(0), datapoint);
+        dataSet.add(datapoint);
+
+        then(getHistoryClient().insertData(dataSet), callbackContext, new FitCallback<Void>() {
+            @Override
+            public void onResult(Void inserted) {
+                callbackContext.success();
             }
+        });
+    }
+
+    /**
+     * Stores many data points at once.
+     * Points are grouped by data type and source into as few DataSets as possible.
+     * The result is an array with an element per point, in the same order: { success: true }
+     * or { success: false, error: "..." }, so that failed points can be retried alone.
+     */
+    private void storeBatch(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        JSONArray items = args.getJSONArray(0);
+        then(insertItems(items, new boolean[items.length()]), callbackContext, new FitCallback<JSONObject[]>() {
+            @Override
+            public void onResult(JSONObject[] results) {
+                JSONArray resultsArr = new JSONArray();
+                for (JSONObject result : results) {
+                    resultsArr.put(result);
+                }
+                callbackContext.success(resultsArr);
+            }
+        });
+    }
+
+    /**
+     * Inserts the items, with one data set per data type and source.
+     *
+     * All the data sets are inserted in parallel.
+     *
+     * @param retry set to true for the items that have been refused by Google Fit, and that can be tried again
+     * @return the task completing with the result of each item, when all the data sets have been inserted or refused
+     */
+    private Task<JSONObject[]> insertItems(JSONArray items, final boolean[] retry) throws JSONException {
+        final JSONObject[] results = new JSONObject[items.length()];
+
+        InsertBatch batch = new InsertBatch(items, cordova.getActivity().getApplicationContext().getPackageName(),
+                new InsertBatch.Codecs() {
+                    @Override
+                    public DataTypeCodec get(String datatype) {
+                        return getCodec(datatype);
+                    }
+                });
+        for (int i = 0; i < items.length(); i++) {
+            if (batch.errors[i] != null) results[i] = storeResult(false, batch.errors[i]);
         }
-        dataSet.add(datapoint);
 
+        List<Task<Void>> inserts = new ArrayList<Task<Void>>();
+        HistoryClient history = null;
+        for (InsertBatch.Chunk chunk : batch.chunks) {
+            if (history == null) history = getHistoryClient();
+            inserts.add(insertPoints(history, chunk.dataSet, chunk.indexes, batch.datapoints, results, retry));
+        }
 
-        Status insertStatus = Fitness.HistoryApi.insertData(mClient, dataSet)
-                .await(1, TimeUnit.MINUTES);
+        return Tasks.whenAllComplete(inserts).continueWith(resultExecutor, new Continuation<List<Task<?>>, JSONObject[]>() {
+            @Override
+            public JSONObject[] then(Task<List<Task<?>>> all) throws Exception {
+                return results;
+            }
+        });
+    }
 
-        if (!insertStatus.isSuccess()) {
-            callbackContext.error(insertStatus.getStatusMessage());
-        } else {
-            callbackContext.success();
+    /**
+     * Inserts a data set, setting the result of each of its points.
+     * A single invalid point makes Google Fit refuse the whole data set: when refused for good,
+     * the data set is split in halves, and each half is inserted again, until the invalid points are isolated.
+     *
+     * @param indexes the index of each point of the data set, in the results
+     */
+    private Task<Void> insertPoints(final HistoryClient history, final DataSet dataSet, final List<Integer> indexes,
+                                    final DataPoint[] datapoints, final JSONObject[] results, final boolean[] retry) {
+        return history.insertData(dataSet).continueWithTask(resultExecutor, new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> insert) throws Exception {
+                if (insert.isSuccessful()) {
+                    for (int i : indexes) results[i] = storeResult(true, null);
+                    return Tasks.forResult(null);
+                }
+                Exception ex = insert.getException();
+                boolean temporary = isTemporaryFailure(ex);
+                if (temporary || (indexes.size() == 1)) {
+                    for (int i : indexes) {
+                        results[i] = storeResult(false, errorMessage(ex));
+                        retry[i] = temporary;
+                    }
+                    return Tasks.forResult(null);
+                }
+                int half = indexes.size() / 2;
+                List<Task<Void>> halves = new ArrayList<Task<Void>>();
+                for (List<Integer> part : Arrays.asList(indexes.subList(0, half), indexes.subList(half, indexes.size()))) {
+                    DataSet partSet = DataSet.create(dataSet.getDataSource());
+                    for (int i : part) partSet.add(datapoints[i]);
+                    halves.add(insertPoints(history, partSet, part, datapoints, results, retry));
+                }
+                return Tasks.whenAll(halves);
+            }
+        });
+    }
+
+    /**
+     * Tells if a write refused by Google Fit may succeed later, e.g. when offline or signed out,
+     * as opposed to a write that will always be refused, e.g. an invalid point.
+     */
+    private static boolean isTemporaryFailure(Exception ex) {
+        Throwable cause = ex;
+        while ((cause instanceof ExecutionException) && (cause.getCause() != null)) cause = cause.getCause();
+        if (cause instanceof ApiException) {
+            switch (((ApiException) cause).getStatusCode()) {
+                case CommonStatusCodes.NETWORK_ERROR:
+                case CommonStatusCodes.TIMEOUT:
+                case CommonStatusCodes.INTERRUPTED:
+                case CommonStatusCodes.INTERNAL_ERROR:
+                case CommonStatusCodes.SIGN_IN_REQUIRED:
+                case CommonStatusCodes.API_NOT_CONNECTED:
+                case CommonStatusCodes.CONNECTION_SUSPENDED_DURING_CALL:
+                case CommonStatusCodes.RECONNECTION_TIMED_OUT:
+                case CommonStatusCodes.RECONNECTION_TIMED_OUT_DURING_UPDATE:
+                case CommonStatusCodes.SERVICE_VERSION_UPDATE_REQUIRED:
+                case CommonStatusCodes.SERVICE_DISABLED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        // invalid arguments are refused for good, anything else (e.g. a missing permission) may be fixed later
+        return !(cause instanceof IllegalArgumentException);
+    }
+
+    /**
+     * Validates a point and adds it to the write queue, it will be written to Fit in the background.
+     */
+    private void enqueue(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        JSONObject item = args.getJSONObject(0);
+        for (String arg : new String[]{"startDate", "endDate", "dataType", "value", "sourceName"}) {
+            if (!item.has(arg)) {
+                callbackContext.error("Missing argument " + arg);
+                return;
+            }
+        }
+        String datatype = item.getString("dataType");
+        if (!codecs.containsKey(datatype) && !isCustomDataType(datatype)) {
+            callbackContext.error("Datatype " + datatype + " not supported");
+            return;
+        }
+        item.remove("queue");
+        final JSONObject queued = item;
+        // the database is opened, and created, on the queue thread, never on the bridge
+        submit(queueExecutor, callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getWriteQueue().add(queued);
+                    scheduleFlush(FLUSH_DELAY);
+                    callbackContext.success();
+                } catch (Exception ex) {
+                    callbackContext.error(ex.getMessage());
+                }
+            }
+        });
+    }
+
+    private void scheduleFlush(long delay) {
+        synchronized (flushLock) {
+            if (flushScheduled) return;
+            flushScheduled = true;
+            nextFlush = System.currentTimeMillis() + delay;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(queueExecutor, null, new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (flushLock) {
+                                flushScheduled = false;
+                            }
+                            startFlush(null);
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // plugin destroyed, points stay in the queue until the next start
+        }
+    }
+
+    /**
+     * Writes the queued points to Fit, in batches, until the queue is empty or a write fails.
+     * Only one flush runs at a time: if one is running, the waiter is answered when it ends, or when a write stalls.
+     * Batches are chained on the queue thread, which is never held while Fit writes a batch.
+     *
+     * @param waiter answered with the status of the queue when the flush ends, may be null
+     */
+    private void startFlush(CallbackContext waiter) {
+        synchronized (flushLock) {
+            if (waiter != null) flushWaiters.add(waiter);
+            if (flushing) return;
+            flushing = true;
+        }
+        flushNext();
+    }
+
+    private void flushNext() {
+        final WriteQueue.Batch batch;
+        final boolean[] retry;
+        final Task<JSONObject[]> insert;
+        try {
+            batch = getWriteQueue().peek(FLUSH_BATCH);
+            if (batch.ids.isEmpty()) {
+                flushEnded(null);
+                return;
+            }
+            retry = new boolean[batch.ids.size()];
+            insert = track(insertItems(batch.items, retry));
+        } catch (Exception ex) {
+            flushEnded(errorMessage(ex));
+            return;
+        }
+
+        // the batch stays in flight until Google Fit answers, even late, so that its points are never written twice:
+        // past the timeout, the delay is only reported, and the callers of flushWriteQueue are answered
+        synchronized (flushLock) {
+            flushingPoints = batch.ids.size();
+        }
+        final ScheduledFuture<?> timeout;
+        try {
+            timeout = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(queueExecutor, null, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!insert.isComplete()) flushStalled();
+                        }
+                    });
+                }
+            }, FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // plugin destroyed, points stay in the queue until the next start
+            return;
+        }
+        insert.addOnCompleteListener(queueExecutor, new OnCompleteListener<JSONObject[]>() {
+            @Override
+            public void onComplete(Task<JSONObject[]> done) {
+                timeout.cancel(false);
+                try {
+                    if (!done.isSuccessful()) {
+                        flushEnded(errorMessage(done.getException()));
+                        return;
+                    }
+                    JSONObject[] results = done.getResult();
+                    List<Long> removed = new ArrayList<Long>();
+                    List<Long> retried = new ArrayList<Long>();
+                    String retryError = null;
+                    for (int i = 0; i < results.length; i++) {
+                        String error = results[i].optString("error");
+                        if (retry[i]) {
+                            if (batch.attempts.get(i) + 1 < FLUSH_MAX_ATTEMPTS) {
+                                retried.add(batch.ids.get(i));
+                                retryError = error;
+                                continue;
+                            }
+                            error = "Given up after " + FLUSH_MAX_ATTEMPTS + " attempts: " + error;
+                        }
+                        removed.add(batch.ids.get(i));
+                        if (retry[i] || !results[i].getBoolean("success")) {
+                            Log.w(TAG, "Queued point rejected: " + error);
+                            synchronized (flushLock) {
+                                rejectedWrites++;
+                            }
+                        }
+                    }
+                    getWriteQueue().remove(removed);
+                    getWriteQueue().retried(retried);
+                    if (retryError != null) {
+                        flushEnded(retryError);
+                        return;
+                    }
+                    synchronized (flushLock) {
+                        flushFailures = 0;
+                        lastFlush = System.currentTimeMillis();
+                    }
+                    flushNext();
+                } catch (Exception ex) {
+                    flushEnded(errorMessage(ex));
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends the running flush, scheduling the next one if it failed, and answers the waiters.
+     *
+     * @param error the error that stopped the flush, null if the queue has been emptied
+     */
+    private void flushEnded(String error) {
+        List<CallbackContext> waiters;
+        synchronized (flushLock) {
+            flushing = false;
+            flushingPoints = 0;
+            waiters = new ArrayList<CallbackContext>(flushWaiters);
+            flushWaiters.clear();
+        }
+        if (error != null) flushFailed(error);
+        answerFlushWaiters(waiters);
+    }
+
+    /**
+     * Reports a write taking longer than the timeout, and answers the waiters; the flush goes on when Google Fit answers.
+     */
+    private void flushStalled() {
+        List<CallbackContext> waiters;
+        synchronized (flushLock) {
+            lastFlushError = "Timeout, still waiting for Google Fit";
+            waiters = new ArrayList<CallbackContext>(flushWaiters);
+            flushWaiters.clear();
+        }
+        Log.w(TAG, "Queued points not written after " + FLUSH_TIMEOUT + " ms, still waiting for Google Fit");
+        answerFlushWaiters(waiters);
+    }
+
+    private void answerFlushWaiters(List<CallbackContext> waiters) {
+        for (CallbackContext waiter : waiters) {
+            try {
+                waiter.success(writeQueueStatus());
+            } catch (Exception ex) {
+                waiter.error(ex.getMessage());
+            }
         }
     }
+
+    private void flushFailed(String error) {
+        long delay;
+        synchronized (flushLock) {
+            flushFailures++;
+            lastFlushError = error;
+            delay = Math.min(FLUSH_DELAY << Math.min(flushFailures, 20), FLUSH_MAX_DELAY);
+        }
+        Log.w(TAG, "Cannot write queued points, retrying in " + delay + " ms: " + error);
+        scheduleFlush(delay);
+    }
+
+    private JSONObject writeQueueStatus() throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("pending", getWriteQueue().count());
+        synchronized (flushLock) {
+            status.put("rejected", rejectedWrites);
+            status.put("failures", flushFailures);
+            if (lastFlushError != null) status.put("lastError", lastFlushError);
+            if (lastFlush > 0) status.put("lastFlush", lastFlush);
+            if (flushScheduled) status.put("nextFlush", nextFlush);
+            if (flushingPoints > 0) status.put("writing", flushingPoints);
+        }
+        return status;
+    }
+
+    private static JSONObject storeResult(boolean success, String error) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("success", success);
+        if (error != null) result.put("error", error);
+        return result;
+    }
 }
@@ -0,0 +1,126 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The data sets to insert for the items passed to store and storeBatch.
+ * Points are grouped by data type and source, keeping the insertion order, into data sets of up to 1000 points.
+ * Items that cannot be converted to a point are left out, with the reason.
+ * MIT licensed.
+ */
+public class InsertBatch {
+    //maximum number of data points inserted with a single DataSet
+    public static final int MAX_POINTS_PER_DATASET = 1000;
+
+    /**
+     * Finds the codec of a data type, null if not supported.
+     */
+    public interface Codecs {
+        DataTypeCodec get(String datatype);
+    }
+
+    /**
+     * A data set ready to be inserted, with the index of the item of each of its points.
+     */
+    public static class Chunk {
+        public final DataSet dataSet;
+        public final List<Integer> indexes;
+
+        Chunk(DataSet dataSet, List<Integer> indexes) {
+            this.dataSet = dataSet;
+            this.indexes = indexes;
+        }
+    }
+
+    // the point of each item, null if left out
+    public final DataPoint[] datapoints;
+    // the reason each item has been left out, null if not
+    public final String[] errors;
+    public final List<Chunk> chunks = new ArrayList<Chunk>();
+
+    /**
+     * @param defaultBundleId the bundle id of the source, for items without sourceBundleId
+     */
+    public InsertBatch(JSONArray items, String defaultBundleId, Codecs codecs) {
+        datapoints = new DataPoint[items.length()];
+        errors = new String[items.length()];
+
+        Map<String, DataSource> sources = new LinkedHashMap<String, DataSource>();
+        Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < items.length(); i++) {
+            try {
+                JSONObject item = items.getJSONObject(i);
+                String missing = null;
+                for (String arg : new String[]{"startDate", "endDate", "dataType", "value", "sourceName"}) {
+                    if (!item.has(arg)) {
+                        missing = arg;
+                        break;
+                    }
+                }
+                if (missing != null) {
+                    errors[i] = "Missing argument " + missing;
+                    continue;
+                }
+                String datatype = item.getString("dataType");
+                DataTypeCodec codec = codecs.get(datatype);
+                if (codec == null) {
+                    errors[i] = "Datatype " + datatype + " not supported";
+                    continue;
+                }
+                String sourceName = item.getString("sourceName");
+                String sourceBundleId = item.optString("sourceBundleId", defaultBundleId);
+
+                String key = datatype + "|" + sourceBundleId + "|" + sourceName;
+                DataSource datasrc = sources.get(key);
+                if (datasrc == null) {
+                    datasrc = new DataSource.Builder()
+                            .setAppPackageName(sourceBundleId)
+                            .setName(sourceName)
+                            .setDataType(codec.getDataType())
+                            .setType(DataSource.TYPE_RAW)
+                            .build();
+                    sources.put(key, datasrc);
+                    groups.put(key, new ArrayList<Integer>());
+                }
+                DataPoint datapoint = DataPoint.create(datasrc);
+                datapoint.setTimeInterval(item.getLong("startDate"), item.getLong("endDate"), TimeUnit.MILLISECONDS);
+                codec.encode(item, datapoint);
+                datapoints[i] = datapoint;
+                groups.get(key).add(i);
+            } catch (Exception ex) {
+                errors[i] = ex.getMessage();
+            }
+        }
+
+        for (Map.Entry<String, DataSource> entry : sources.entrySet()) {
+            List<Integer> indexes = groups.get(entry.getKey());
+            for (int from = 0; from < indexes.size(); from += MAX_POINTS_PER_DATASET) {
+                DataSet dataSet = DataSet.create(entry.getValue());
+                List<Integer> added = new ArrayList<Integer>();
+                for (int i : indexes.subList(from, Math.min(from + MAX_POINTS_PER_DATASET, indexes.size()))) {
+                    try {
+                        dataSet.add(datapoints[i]);
+                        added.add(i);
+                    } catch (Exception ex) {
+                        // e.g. invalid time interval
+                        errors[i] = ex.getMessage();
+                        datapoints[i] = null;
+                    }
+                }
+                if (!added.isEmpty()) chunks.add(new Chunk(dataSet, added));
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.apache.cordova.health;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-flight coalescing of identical requests: while a request is running,
+ * the same request with the same arguments joins it instead of reading from Google Fit again,
+ * and all the callers receive the same results.
+ * Final results can also be kept for a short time (ttl) and served to identical requests arriving afterwards.
+ * MIT licensed.
+ */
+public class RequestCoalescer {
+    // option with the time, in ms, the result can be re-used after the request is completed
+    public static final String TTL_OPTION = "coalesceTtl";
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    /**
+     * Joins an identical request in flight, or starts a new one.
+     *
+     * @return the callback context the request has to be run with, or null if the request joined another one
+     * or has already been answered
+     */
+    public CallbackContext join(String action, JSONObject opts, CallbackContext callbackContext, CordovaWebView webView) throws JSONException {
+        String key = action + canonical(opts);
+        long ttl = opts.optLong(TTL_OPTION, 0);
+        PluginResult recent = null;
+        Flight flight;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            removeExpired(now);
+            flight = flights.get(key);
+            if ((flight != null) && (flight.result != null)) {
+                recent = flight.result;
+            } else if ((flight != null) && !flight.started) {
+                ActionMetrics.coalesced(callbackContext);
+                flight.waiters.add(callbackContext);
+                return null;
+            } else {
+                // never joined after results have started to be sent, as earlier chunks would be missed
+                flight = new Flight(key, ttl, callbackContext, webView);
+                flights.put(key, flight);
+            }
+        }
+        if (recent != null) {
+            ActionMetrics.coalesced(callbackContext);
+            callbackContext.sendPluginResult(recent);
+            return null;
+        }
+        return flight;
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Flight> it = flights.values().iterator();
+        while (it.hasNext()) {
+            Flight flight = it.next();
+            if ((flight.result != null) && (now > flight.expires)) it.remove();
+        }
+    }
+
+    private synchronized void complete(Flight flight, PluginResult result, boolean reusable) {
+        if (flights.get(flight.key) != flight) return;
+        if (reusable && (flight.ttl > 0)) {
+            flight.result = result;
+            flight.expires = System.currentTimeMillis() + flight.ttl;
+        } else {
+            flights.remove(flight.key);
+        }
+    }
+
+    /**
+     * Gets the context of the caller that started the request.
+     */
+    public static CallbackContext leader(CallbackContext callbackContext) {
+        if (callbackContext instanceof Flight) return ((Flight) callbackContext).leader;
+        return callbackContext;
+    }
+
+    // JSON with sorted keys, the ttl is left out as it doesn't change the result
+    private static String canonical(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            List<String> keys = new ArrayList<String>();
+            Iterator<String> it = obj.keys();
+            while (it.hasNext()) {
+                String k = it.next();
+                if (!k.equals(TTL_OPTION)) keys.add(k);
+            }
+            Collections.sort(keys);
+            StringBuilder sb = new StringBuilder("{");
+            for (String k : keys) {
+                sb.append(JSONObject.quote(k)).append(':').append(canonical(obj.get(k))).append(',');
+            }
+            return sb.append('}').toString();
+        } else if (value instanceof JSONArray) {
+            JSONArray arr = (JSONArray) value;
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < arr.length(); i++) {
+                sb.append(canonical(arr.get(i))).append(',');
+            }
+            return sb.append(']').toString();
+        } else if (value instanceof String) {
+            return JSONObject.quote((String) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Callback context of a request in flight, sends its results to all the callers that joined it.
+     */
+    private class Flight extends CallbackContext {
+        private final String key;
+        private final long ttl;
+        private final CallbackContext leader;
+        // all the callers, including the leader
+        private final List<CallbackContext> waiters = new ArrayList<CallbackContext>();
+        private boolean started = false;
+        private PluginResult result;
+        private long expires;
+
+        Flight(String key, long ttl, CallbackContext leader, CordovaWebView webView) {
+            super(leader.getCallbackId(), webView);
+            this.key = key;
+            this.ttl = ttl;
+            this.leader = leader;
+            waiters.add(leader);
+        }
+
+        // results are built here and not by the leader, their serialisation is timed for the leader
+        @Override
+        public void success(JSONObject message) {
+            sendPluginResult(ActionMetrics.result(leader, message));
+        }
+
+        @Override
+        public void success(JSONArray message) {
+            sendPluginResult(ActionMetrics.result(leader, message));
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            List<CallbackContext> targets;
+            boolean chunked;
+            synchronized (RequestCoalescer.this) {
+                chunked = started;
+                started = true;
+                targets = new ArrayList<CallbackContext>(waiters);
+            }
+            if (!pluginResult.getKeepCallback()) {
+                // only single, successful results can be re-used
+                complete(this, pluginResult, !chunked && (pluginResult.getStatus() == PluginResult.Status.OK.ordinal()));
+            }
+            for (CallbackContext target : targets) {
+                target.sendPluginResult(pluginResult);
+            }
+        }
+    }
+}
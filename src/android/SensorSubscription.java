@@ -0,0 +1,127 @@
+package org.apache.cordova.health;
+
+import android.util.Log;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.request.OnDataPointListener;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live subscription to the samples of a data type coming from the sensors.
+ * Samples are buffered as they arrive and delivered to JS in batches, at most one per interval,
+ * through a callback that is kept alive until the subscription is stopped.
+ * MIT licensed.
+ */
+public class SensorSubscription implements OnDataPointListener {
+    private static final String TAG = "cordova-plugin-health";
+
+    private final String id;
+    private final DataTypeCodec codec;
+    private final CallbackContext callbackContext;
+    private JSONArray buffer = new JSONArray();
+    private ScheduledFuture<?> flushTask;
+    private boolean started = false;
+    private boolean stopped = false;
+
+    public SensorSubscription(String id, DataTypeCodec codec, CallbackContext callbackContext) {
+        this.id = id;
+        this.codec = codec;
+        this.callbackContext = callbackContext;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void onDataPoint(DataPoint datapoint) {
+        try {
+            JSONObject obj = codec.toJSON(datapoint);
+            // instantaneous samples have no start time
+            if (datapoint.getStartTime(TimeUnit.MILLISECONDS) == 0) {
+                obj.put("startDate", datapoint.getTimestamp(TimeUnit.MILLISECONDS));
+            }
+            synchronized (this) {
+                if (!stopped) buffer.put(obj);
+            }
+        } catch (JSONException ex) {
+            Log.e(TAG, "Cannot convert sample of subscription " + id, ex);
+        }
+    }
+
+    /**
+     * Confirms the subscription to JS, with an empty batch, and starts delivering the samples every interval ms.
+     * Called once the listener has been added to the sensors.
+     *
+     * @return false if the subscription has been stopped while the listener was being added,
+     * in which case the listener has to be removed
+     */
+    public synchronized boolean start(ScheduledExecutorService executor, long interval) {
+        if (stopped) return false;
+        started = true;
+        send(new JSONArray(), true);
+        flushTask = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Sends the buffered samples, if any.
+     */
+    public void flush() {
+        JSONArray batch;
+        synchronized (this) {
+            if (buffer.length() == 0) return;
+            batch = buffer;
+            buffer = new JSONArray();
+        }
+        send(batch, true);
+    }
+
+    /**
+     * Stops the delivery, and, if deliver is true, sends the last buffered samples and releases the callback.
+     * Samples are not delivered when the page that subscribed is gone.
+     *
+     * @return true if the listener had been added, and has to be removed; if not, it is removed by start()
+     */
+    public boolean stop(boolean deliver) {
+        JSONArray batch;
+        boolean added;
+        synchronized (this) {
+            if (stopped) return false;
+            stopped = true;
+            added = started;
+            if (flushTask != null) flushTask.cancel(false);
+            batch = buffer;
+            buffer = new JSONArray();
+        }
+        if (deliver) send(batch, false);
+        return added;
+    }
+
+    private void send(JSONArray data, boolean more) {
+        try {
+            JSONObject message = new JSONObject();
+            message.put("id", id);
+            message.put("data", data);
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            result.setKeepCallback(more);
+            callbackContext.sendPluginResult(result);
+        } catch (JSONException ex) {
+            Log.e(TAG, "Cannot deliver samples of subscription " + id, ex);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters the data points of a query by source, and optionally removes the overlapping points
+ * coming from different sources, keeping those of the source with the highest priority.
+ * With dedup, a point is kept unless it overlaps a kept point of another source with a higher priority,
+ * or with the same priority and an earlier start: points are taken by priority, then by start time,
+ * and compared with the time already covered by each other source.
+ * A source is identified either by its bundle id (app package name) or by its name.
+ * MIT licensed.
+ */
+public class SourceFilter {
+    private final List<String> sources;
+    private final List<String> excludeSources;
+    private final boolean dedup;
+
+    private SourceFilter(List<String> sources, List<String> excludeSources, boolean dedup) {
+        this.sources = sources;
+        this.excludeSources = excludeSources;
+        this.dedup = dedup;
+    }
+
+    /**
+     * Creates the filter from the sources, excludeSources and dedup options of a query.
+     *
+     * @return null if none of the options is set
+     */
+    public static SourceFilter fromOptions(JSONObject opts) throws JSONException {
+        List<String> sources = toList(opts.optJSONArray("sources"));
+        List<String> excludeSources = toList(opts.optJSONArray("excludeSources"));
+        boolean dedup = opts.optBoolean("dedup", false);
+        if ((sources == null) && (excludeSources == null) && !dedup) return null;
+        return new SourceFilter(sources, excludeSources, dedup);
+    }
+
+    /**
+     * Tells if overlapping points are removed, which needs all the points of the query at once.
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    private static List<String> toList(JSONArray arr) throws JSONException {
+        if (arr == null) return null;
+        List<String> list = new ArrayList<String>(arr.length());
+        for (int i = 0; i < arr.length(); i++) {
+            list.add(arr.getString(i));
+        }
+        return list;
+    }
+
+    // position of the source in the list, the size of the list if not found
+    private static int indexOf(List<String> list, DataSource source) {
+        int i = 0;
+        for (String s : list) {
+            if (s.equals(source.getAppPackageName()) || s.equals(source.getName())) return i;
+            i++;
+        }
+        return i;
+    }
+
+    private static class Entry {
+        final DataPoint datapoint;
+        final long start;
+        final long end;
+        final String sourceKey;
+        final int priority;
+        // position in time order
+        int order;
+        boolean kept;
+
+        Entry(DataPoint datapoint, DataSource source, int priority) {
+            this.datapoint = datapoint;
+            this.start = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+            this.end = datapoint.getEndTime(TimeUnit.MILLISECONDS);
+            this.sourceKey = source.getAppPackageName() + "\n" + source.getName();
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Gets the points of the datasets accepted by the filter, sorted by start time.
+     */
+    public List<DataPoint> apply(List<DataSet> datasets) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (DataSet dataset : datasets) {
+            for (DataPoint datapoint : dataset.getDataPoints()) {
+                DataSource source = datapoint.getOriginalDataSource();
+                if (source == null) source = dataset.getDataSource();
+                int priority = 0;
+                if (sources != null) {
+                    priority = indexOf(sources, source);
+                    if (priority == sources.size()) continue;
+                }
+                if ((excludeSources != null) && (indexOf(excludeSources, source) < excludeSources.size())) continue;
+                entries.add(new Entry(datapoint, source, priority));
+            }
+        }
+        // the sort is stable, so points with the same start time keep the order of the store
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return (a.start < b.start) ? -1 : ((a.start == b.start) ? 0 : 1);
+            }
+        });
+
+        if (dedup) dedup(entries);
+
+        List<DataPoint> points = new ArrayList<DataPoint>(entries.size());
+        for (Entry entry : entries) {
+            if (!dedup || entry.kept) points.add(entry.datapoint);
+        }
+        return points;
+    }
+
+    /**
+     * Marks the points kept by dedup, entries are sorted by start time.
+     * The earlier in the sources list, the higher the priority; without sources all have the same priority.
+     */
+    private static void dedup(List<Entry> entries) {
+        List<Entry> byPriority = new ArrayList<Entry>(entries);
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).order = i;
+        }
+        Collections.sort(byPriority, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.priority != b.priority) return (a.priority < b.priority) ? -1 : 1;
+                return (a.order < b.order) ? -1 : ((a.order == b.order) ? 0 : 1);
+            }
+        });
+        // time covered by the kept points of each source, as disjoint intervals: start -> end
+        Map<String, TreeMap<Long, Long>> covered = new HashMap<String, TreeMap<Long, Long>>();
+        for (Entry entry : byPriority) {
+            // instantaneous points cover one millisecond
+            long start = entry.start;
+            long end = Math.max(entry.end, entry.start + 1);
+            boolean overlaps = false;
+            for (Map.Entry<String, TreeMap<Long, Long>> source : covered.entrySet()) {
+                if (source.getKey().equals(entry.sourceKey)) continue;
+                // the last interval starting before the end of the point is the only one that can overlap it
+                Map.Entry<Long, Long> interval = source.getValue().lowerEntry(end);
+                if ((interval != null) && (interval.getValue() > start)) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (overlaps) continue;
+            entry.kept = true;
+            TreeMap<Long, Long> intervals = covered.get(entry.sourceKey);
+            if (intervals == null) {
+                intervals = new TreeMap<Long, Long>();
+                covered.put(entry.sourceKey, intervals);
+            }
+            // merge with the intervals it overlaps or touches
+            Map.Entry<Long, Long> before = intervals.floorEntry(start);
+            if ((before != null) && (before.getValue() >= start)) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                intervals.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> after = intervals.ceilingEntry(start);
+            while ((after != null) && (after.getKey() <= end)) {
+                end = Math.max(end, after.getValue());
+                intervals.remove(after.getKey());
+                after = intervals.ceilingEntry(start);
+            }
+            intervals.put(start, end);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.result.DataReadResponse;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read of a long time range split into consecutive sub-ranges, read in parallel with a bounded number of reads at a time.
+ * Fit returns the points overlapping a sub-range, each sub-range keeps only those starting in it,
+ * so that points across two sub-ranges are not repeated.
+ * The points of each sub-range are sorted by start time, and sub-ranges are handed over in time order,
+ * each one as soon as all the previous ones have been handed over.
+ * MIT licensed.
+ */
+public class SplitRead {
+
+    /**
+     * Reads the raw points of a sub-range.
+     */
+    public interface Reader {
+        Task<DataReadResponse> read(long st, long et);
+    }
+
+    public interface Listener {
+        /**
+         * Receives the points of a sub-range, in time order with respect to the other sub-ranges.
+         *
+         * @return false if the following sub-ranges are not needed
+         */
+        boolean onRange(List<DataPoint> points, DataReadResponse response) throws Exception;
+
+        /**
+         * Called once, after the last sub-range has been handed over, or reading has been stopped,
+         * or when the first error happens, in which case no more sub-ranges are handed over.
+         *
+         * @param error null if the read was successful
+         */
+        void onEnd(Exception error);
+    }
+
+    private final long[] starts;
+    private final long[] ends;
+    private final int parallelism;
+    private final SourceFilter sourceFilter;
+    private final Reader reader;
+    private final Executor executor;
+    private final Listener listener;
+
+    // sub-ranges read but not handed over yet, by index
+    private final Range[] ready;
+    private int nextRead = 0;
+    private int nextHandover = 0;
+    private boolean handingOver = false;
+    private boolean stopped = false;
+    // error of a read that failed while a sub-range was being handed over
+    private Exception failure;
+
+    private static class Range {
+        final List<DataPoint> points;
+        final DataReadResponse response;
+
+        Range(List<DataPoint> points, DataReadResponse response) {
+            this.points = points;
+            this.response = response;
+        }
+    }
+
+    /**
+     * @param window       maximum length of a sub-range, in ms
+     * @param parallelism  maximum number of sub-ranges being read, or read and waiting to be handed over
+     * @param sourceFilter filter applied to the points of each sub-range, can be null, must not dedup
+     *                     as overlapping points can fall in different sub-ranges
+     * @param executor     where the points of each sub-range are sorted and handed over
+     */
+    public SplitRead(long st, long et, long window, int parallelism, SourceFilter sourceFilter,
+                     Reader reader, Executor executor, Listener listener) {
+        int n = count(st, et, window);
+        this.starts = new long[n];
+        this.ends = new long[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = st + i * window;
+            ends[i] = Math.min(et, starts[i] + window);
+        }
+        this.parallelism = Math.max(1, parallelism);
+        this.sourceFilter = sourceFilter;
+        this.reader = reader;
+        this.executor = executor;
+        this.listener = listener;
+        this.ready = new Range[n];
+    }
+
+    /**
+     * Number of sub-ranges a time range is split into.
+     */
+    public static int count(long st, long et, long window) {
+        if (et <= st) return 1;
+        return (int) Math.min(Integer.MAX_VALUE, (et - st + window - 1) / window);
+    }
+
+    public void start() {
+        readMore();
+    }
+
+    private void readMore() {
+        List<Integer> toRead = new ArrayList<Integer>();
+        synchronized (this) {
+            while (!stopped && (nextRead < starts.length) && (nextRead - nextHandover < parallelism)) {
+                toRead.add(nextRead++);
+            }
+        }
+        for (final int i : toRead) {
+            Task<DataReadResponse> task;
+            try {
+                task = reader.read(starts[i], ends[i]);
+            } catch (Exception ex) {
+                fail(ex);
+                return;
+            }
+            task.addOnCompleteListener(executor, new OnCompleteListener<DataReadResponse>() {
+                @Override
+                public void onComplete(Task<DataReadResponse> done) {
+                    completed(i, done);
+                }
+            });
+        }
+    }
+
+    private void completed(int i, Task<DataReadResponse> done) {
+        if (!done.isSuccessful()) {
+            fail(done.getException());
+            return;
+        }
+        // sub-ranges are sorted in parallel, only the hand over is sequential
+        List<DataPoint> points = pointsStartingIn(i, done.getResult());
+        synchronized (this) {
+            if (stopped) return;
+            ready[i] = new Range(points, done.getResult());
+        }
+        handOver();
+        readMore();
+    }
+
+    // the first sub-range also keeps the points starting before the range, as a single read would
+    private List<DataPoint> pointsStartingIn(int i, DataReadResponse response) {
+        long from = (i == 0) ? Long.MIN_VALUE : starts[i];
+        long to = (i == starts.length - 1) ? Long.MAX_VALUE : ends[i];
+        List<DataPoint> all;
+        if (sourceFilter != null) {
+            all = sourceFilter.apply(response.getDataSets());
+        } else {
+            all = new ArrayList<DataPoint>();
+            for (DataSet dataset : response.getDataSets()) {
+                all.addAll(dataset.getDataPoints());
+            }
+            // the sort is stable, so points with the same start time keep the order of the store
+            Collections.sort(all, new Comparator<DataPoint>() {
+                @Override
+                public int compare(DataPoint a, DataPoint b) {
+                    long sa = a.getStartTime(TimeUnit.MILLISECONDS);
+                    long sb = b.getStartTime(TimeUnit.MILLISECONDS);
+                    return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+                }
+            });
+        }
+        List<DataPoint> points = new ArrayList<DataPoint>(all.size());
+        for (DataPoint datapoint : all) {
+            long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+            if ((pst >= from) && (pst < to)) points.add(datapoint);
+        }
+        return points;
+    }
+
+    // only one thread at a time hands over, and keeps going while the next sub-range is ready
+    private void handOver() {
+        while (true) {
+            Range range;
+            synchronized (this) {
+                if (handingOver || stopped || (nextHandover == starts.length) || (ready[nextHandover] == null)) return;
+                handingOver = true;
+                range = ready[nextHandover];
+                ready[nextHandover] = null;
+            }
+            boolean more;
+            Exception error = null;
+            try {
+                more = listener.onRange(range.points, range.response);
+            } catch (Exception ex) {
+                more = false;
+                error = ex;
+            }
+            boolean end;
+            synchronized (this) {
+                handingOver = false;
+                nextHandover++;
+                // a read that failed during the hand over comes first
+                if (failure != null) error = failure;
+                end = (error != null) || !more || (nextHandover == starts.length);
+                if (end) stopped = true;
+            }
+            if (end) {
+                listener.onEnd(error);
+                return;
+            }
+        }
+    }
+
+    private void fail(Exception error) {
+        synchronized (this) {
+            if (stopped) return;
+            stopped = true;
+            // the listener is busy, the error is sent once it is done
+            if (handingOver) {
+                failure = error;
+                return;
+            }
+        }
+        listener.onEnd(error);
+    }
+}
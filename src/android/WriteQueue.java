@@ -0,0 +1,114 @@
+package org.apache.cordova.health;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable queue of the data points waiting to be written to Google Fit.
+ * Unlike the cache, its content is never dropped: points stay here until they are written or rejected.
+ * MIT licensed.
+ */
+public class WriteQueue extends SQLiteOpenHelper {
+    private static final String DB_NAME = "cordova-plugin-health-queue.db";
+    private static final int DB_VERSION = 2;
+
+    public WriteQueue(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Tells if the queue has ever been created, without creating it.
+     */
+    public static boolean exists(Context context) {
+        return context.getDatabasePath(DB_NAME).exists();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // points as passed to store(), in insertion order, with the number of failed attempts to write them
+        db.execSQL("CREATE TABLE pending (id INTEGER PRIMARY KEY AUTOINCREMENT, json TEXT NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // queued points are kept
+        if (oldVersion < 2) db.execSQL("ALTER TABLE pending ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0");
+    }
+
+    public synchronized void add(JSONObject item) {
+        ContentValues values = new ContentValues();
+        values.put("json", item.toString());
+        getWritableDatabase().insert("pending", null, values);
+    }
+
+    public synchronized long count() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), "pending");
+    }
+
+    /**
+     * The oldest points in the queue, with their ids and the number of failed attempts to write them.
+     */
+    public static class Batch {
+        public final List<Long> ids = new ArrayList<Long>();
+        public final List<Integer> attempts = new ArrayList<Integer>();
+        public final JSONArray items = new JSONArray();
+    }
+
+    public synchronized Batch peek(int max) throws JSONException {
+        Batch batch = new Batch();
+        Cursor c = getReadableDatabase().query("pending", new String[]{"id", "json", "attempts"},
+                null, null, null, null, "id", Integer.toString(max));
+        try {
+            while (c.moveToNext()) {
+                batch.ids.add(c.getLong(0));
+                batch.items.put(new JSONObject(c.getString(1)));
+                batch.attempts.add(c.getInt(2));
+            }
+        } finally {
+            c.close();
+        }
+        return batch;
+    }
+
+    public synchronized void remove(List<Long> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long id : ids) {
+                db.delete("pending", "id = ?", new String[]{Long.toString(id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Counts a failed attempt to write the given points, which stay in the queue.
+     */
+    public synchronized void retried(List<Long> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long id : ids) {
+                db.execSQL("UPDATE pending SET attempts = attempts + 1 WHERE id = ?", new Object[]{id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -13,83 +13,130 @@ Health.prototype.requestAuthorization = function (datatypes, onSuccess, onError)
 };
 
 
-Health.prototype.query = function (opts, onSuccess, onError) {
-  //calories.active is done by asking all calories and subtracting the basal
-  if(opts.dataType =='calories.active'){
-    //get basal average in the time window between endDate and BASAL_CALORIES_QUERY_PERIOD
-    navigator.health.queryAggregated({
-      dataType:'calories.basal',
-      endDate: opts.endDate,
-      startDate: opts.startDate
-    }, function(data){
-      var basal_ms = data.value / (opts.endDate - opts.startDate);
-      //now get the total
-      opts.dataType ='calories';
-      navigator.health.query(opts, function(data){
-        //and subtract the basal
-        for(var i=0; i<data.length; i++){
-          data[i].value -= basal_ms * (data[i].endDate.getTime() - data[i].startDate.getTime());
-
-          //although it shouldn't happen, after subtracting, sometimes the values are negative,
-          //in that case let's return 0 (negative values don't make sense)
-          if(data[i].value <0) data[i].value = 0;
-        }
-        onSuccess(data);
-      }, onError);
-    }, onError);
+//decodes the binary format of query, see ColumnarResult.java for the layout
+var decodeBinary = function (buf) {
+  var view = new DataView(buf);
+  var n = view.getInt32(0, true);
+  var headerLen = view.getInt32(4, true);
+  var headerBytes = new Uint8Array(buf, 8 + n * 28, headerLen);
+  var headerStr;
+  if (typeof TextDecoder !== 'undefined') {
+    headerStr = new TextDecoder('utf-8').decode(headerBytes);
   } else {
-    //standard case, just use the name as it is
-    if(opts.startDate && (typeof opts.startDate == 'object'))
-    opts.startDate = opts.startDate.getTime();
-    if(opts.endDate && (typeof opts.endDate == 'object'))
-    opts.endDate = opts.endDate.getTime();
-    exec(function(data){
-      for(var i=0; i<data.length; i++){
-        data[i].startDate = new Date(data[i].startDate);
-        data[i].endDate = new Date(data[i].endDate);
-      }
+    headerStr = '';
+    for (var i = 0; i < headerBytes.length; i++) headerStr += String.fromCharCode(headerBytes[i]);
+    headerStr = decodeURIComponent(escape(headerStr));
+  }
+  var header = JSON.parse(headerStr);
+  //typed arrays use the platform endianness, which is little endian on all Android devices
+  return {
+    startDate: new Float64Array(buf, 8, n),
+    endDate: new Float64Array(buf, 8 + n * 8, n),
+    value: new Float64Array(buf, 8 + n * 16, n),
+    source: new Int32Array(buf, 8 + n * 24, n),
+    sources: header.sources,
+    unit: header.unit
+  };
+};
+
+Health.prototype.query = function (opts, onSuccess, onError) {
+  if(opts.startDate && (typeof opts.startDate == 'object'))
+  opts.startDate = opts.startDate.getTime();
+  if(opts.endDate && (typeof opts.endDate == 'object'))
+  opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    //columnar data is returned as it is, dates are in milliseconds
+    if(opts.format == 'columnar'){
       onSuccess(data);
-    }, onError, "health", "query", [opts]);
+      return;
+    }
+    if(opts.format == 'binary'){
+      onSuccess(decodeBinary(data));
+      return;
+    }
+    //with chunkSize, limit or cache, or when empty with emptyResult 'metadata', the data comes wrapped in a page object
+    var page;
+    if(opts.chunkSize || opts.limit || opts.cache || !Array.isArray(data)){
+      page = { more: data.more, cursor: data.cursor || null };
+      if(data.cache) page.cache = data.cache;
+      if(data.empty){
+        data.empty.startDate = new Date(data.empty.startDate);
+        data.empty.endDate = new Date(data.empty.endDate);
+        page.empty = data.empty;
+      }
+      data = data.data;
+    }
+    for(var i=0; i<data.length; i++){
+      data[i].startDate = new Date(data[i].startDate);
+      data[i].endDate = new Date(data[i].endDate);
+    }
+    if(page) onSuccess(data, page);
+    else onSuccess(data);
+  }, onError, "health", "query", [opts]);
+};
+
+Health.prototype.queryBatch = function (opts, onSuccess, onError) {
+  var toMs = function (d) {
+    return (d && (typeof d == 'object')) ? d.getTime() : d;
+  };
+  opts.startDate = toMs(opts.startDate);
+  opts.endDate = toMs(opts.endDate);
+  if (opts.ranges) {
+    for (var r = 0; r < opts.ranges.length; r++) {
+      opts.ranges[r].startDate = toMs(opts.ranges[r].startDate);
+      opts.ranges[r].endDate = toMs(opts.ranges[r].endDate);
+    }
   }
+  exec(function (data) {
+    //reconvert the dates back to Date objects
+    var toDates = function (set) {
+      for (var i = 0; i < set.length; i++) {
+        set[i].startDate = new Date(set[i].startDate);
+        set[i].endDate = new Date(set[i].endDate);
+      }
+    };
+    for (var dt in data) {
+      if (opts.ranges) {
+        for (var j = 0; j < data[dt].length; j++) toDates(data[dt][j]);
+      } else toDates(data[dt]);
+    }
+    onSuccess(data);
+  }, onError, "health", "queryBatch", [opts]);
 };
 
 Health.prototype.queryAggregated = function (opts, onSuccess, onError) {
-  if(opts.dataType =='calories.active'){
-    //get basal average
-    navigator.health.queryAggregated({
-      dataType:'calories.basal',
-      endDate: opts.endDate,
-      startDate: opts.startDate
-    }, function(data){
-      var basal_ms = data.value / (opts.endDate - opts.startDate);
-      //now get the total
-      opts.dataType ='calories';
-      navigator.health.queryAggregated(opts, function(retval){
-        //and remove the basal
-        retval.value -= basal_ms * (retval.endDate.getTime() - retval.startDate.getTime());
-        //although it shouldn't happen....
-        if(retval.value <0) retval.value = 0;
-        onSuccess(retval);
-      }, onError);
-    }, onError);
-  } else {
-    if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
-    if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
-    exec(function(data){
-      //reconvert the dates back to Date objects
-      if(Object.prototype.toString.call( data ) === '[object Array]'){
-        //it's an array
-        for(var i=0; i<data.length; i++){
-          data[i].startDate = new Date(data[i].startDate);
-          data[i].endDate = new Date(data[i].endDate);
-        }
-      } else {
-        data.startDate = new Date(data.startDate);
-        data.endDate = new Date(data.endDate);
+  if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
+  if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    //reconvert the dates back to Date objects
+    if(Object.prototype.toString.call( data ) === '[object Array]'){
+      //it's an array
+      for(var i=0; i<data.length; i++){
+        data[i].startDate = new Date(data[i].startDate);
+        data[i].endDate = new Date(data[i].endDate);
       }
-      onSuccess(data);
-    }, onError, "health", "queryAggregated", [opts]);
-  }
+    } else {
+      data.startDate = new Date(data.startDate);
+      data.endDate = new Date(data.endDate);
+    }
+    onSuccess(data);
+  }, onError, "health", "queryAggregated", [opts]);
+};
+
+Health.prototype.querySessions = function (opts, onSuccess, onError) {
+  if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
+  if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    for(var i=0; i<data.length; i++){
+      data[i].startDate = new Date(data[i].startDate);
+      data[i].endDate = new Date(data[i].endDate);
+    }
+    onSuccess(data);
+  }, onError, "health", "querySessions", [opts]);
+};
+
+Health.prototype.clearCache = function (onSuccess, onError) {
+  exec(onSuccess, onError, "health", "clearCache", []);
 };
 
 Health.prototype.store = function (data, onSuccess, onError) {
@@ -111,6 +158,79 @@ Health.prototype.store = function (data, onSuccess, onError) {
   exec(onSuccess, onError, "health", "store", [data]);
 };
 
+Health.prototype.storeBatch = function (data, onSuccess, onError) {
+  var items = [];
+  var rejected = [];
+  for(var i=0; i<data.length; i++){
+    var d = data[i];
+    if(d.dataType =='calories.basal'){
+      rejected[i] = { success: false, error: 'basal calories cannot be stored in Android' };
+      continue;
+    }
+    if(d.dataType =='calories.active') d.dataType ='calories';
+    if(d.startDate && (typeof d.startDate == 'object')) d.startDate = d.startDate.getTime();
+    if(d.endDate && (typeof d.endDate == 'object')) d.endDate = d.endDate.getTime();
+    if(d.dataType =='activity') d.value = navigator.health.toFitActivity(d.value);
+    items.push(d);
+  }
+  exec(function(results){
+    //put back the rejected items, so that results match the input
+    var merged = [];
+    var j = 0;
+    for(var i=0; i<data.length; i++){
+      if(rejected[i]) merged.push(rejected[i]);
+      else merged.push(results[j++]);
+    }
+    onSuccess(merged);
+  }, onError, "health", "storeBatch", [items]);
+};
+
+Health.prototype.sync = function (opts, onSuccess, onError) {
+  if(opts.startDate && (typeof opts.startDate == 'object'))
+  opts.startDate = opts.startDate.getTime();
+  exec(function(res){
+    for(var i=0; i<res.data.length; i++){
+      res.data[i].startDate = new Date(res.data[i].startDate);
+      res.data[i].endDate = new Date(res.data[i].endDate);
+    }
+    onSuccess(res.data, res.syncToken);
+  }, onError, "health", "sync", [opts]);
+};
+
+Health.prototype.subscribe = function (opts, onData, onError) {
+  exec(function(msg){
+    for(var i=0; i<msg.data.length; i++){
+      msg.data[i].startDate = new Date(msg.data[i].startDate);
+      msg.data[i].endDate = new Date(msg.data[i].endDate);
+    }
+    onData(msg.data, msg.id);
+  }, onError, "health", "subscribe", [opts]);
+};
+
+Health.prototype.unsubscribe = function (id, onSuccess, onError) {
+  exec(onSuccess, onError, "health", "unsubscribe", [{ id: id }]);
+};
+
+Health.prototype.getWriteQueueStatus = function (onSuccess, onError) {
+  exec(onSuccess, onError, "health", "getWriteQueueStatus", []);
+};
+
+Health.prototype.flushWriteQueue = function (onSuccess, onError) {
+  exec(onSuccess, onError, "health", "flushWriteQueue", []);
+};
+
+Health.prototype.getQueueStatus = function (onSuccess, onError) {
+  exec(onSuccess, onError, "health", "getQueueStatus", []);
+};
+
+Health.prototype.setConcurrency = function (opts, onSuccess, onError) {
+  exec(onSuccess, onError, "health", "setConcurrency", [opts]);
+};
+
+Health.prototype.getMetrics = function (opts, onSuccess, onError) {
+  exec(onSuccess, onError, "health", "getMetrics", [opts || {}]);
+};
+
 Health.prototype.toFitActivity = function (act) {
   if (act === 'core_training') return 'strength_training';
   if (act === 'flexibility') return 'gymnastics';